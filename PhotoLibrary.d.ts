@@ -2,7 +2,11 @@ declare module PhotoLibraryCordova {
 
   export interface Plugin {
 
-    getLibrary(success: (chunk: { library: LibraryItem[], isLastChunk: boolean }) => void, error: (err: any) => void, options?: GetLibraryOptions): void;
+    getLibrary(success: (chunk: { library: LibraryItem[], isLastChunk: boolean, isCancelled: boolean }) => void, error: (err: any) => void, options?: GetLibraryOptions): string;
+
+    cancelLibrary(sessionId: string, success?: (wasRunning: boolean) => void, error?: (err: any) => void): void;
+
+    getLibraryItems(photoIdsOrLibraryItems: (string | LibraryItem)[], success: (libraryItems: (LibraryItem | null)[]) => void, error: (err: any) => void, options?: GetLibraryItemsOptions): void;
 
     requestAuthorization(success: () => void, error: (err: any) => void, options?: RequestAuthorizationOptions): void;
 
@@ -24,13 +28,33 @@ declare module PhotoLibraryCordova {
 
     getPhoto(photoId: string, success: (result: Blob) => void, error: (err: any) => void, options?: GetPhotoOptions): void;
     getPhoto(libraryItem: LibraryItem, success: (result: Blob) => void, error: (err: any) => void, options?: GetPhotoOptions): void;
+    // Returns sessionId for cancelPhoto (android only)
+    getPhoto(photoIdOrLibraryItem: string | LibraryItem, success: (result: Blob, isPreview: boolean) => void, error: (err: any) => void, options: ProgressiveGetPhotoOptions): string;
+    cancelPhoto(sessionId: string, success?: (found: boolean) => void, error?: (err: any) => void): void;
+    getPhotoRegion(photoIdOrLibraryItem: string | LibraryItem, rect: PhotoRect, scale: number, success: (result: Blob) => void, error: (err: any) => void, options?: GetPhotoRegionOptions): void;
+    getTileURL(photoIdOrLibraryItem: string | LibraryItem, rect: PhotoRect, scale: number, options?: GetPhotoRegionOptions): string; // Android only
     getLibraryItem(libraryItem: LibraryItem, success: (result: Blob) => void, error: (err: any) => void, options?: GetPhotoOptions): void;
 
     stopCaching(success: () => void, error: (err: any) => void): void;
 
+    exportPhotos(photoIdsOrLibraryItems: (string | LibraryItem)[], targetDir: string, success: (files: ExportedFile[]) => void, error: (err: any) => void, options?: ExportPhotosOptions): void;
+
+    findSimilar(photoIdOrLibraryItem: string | LibraryItem, success: (similar: { id: string, distance: number }[], progress: SimilarityIndexProgress) => void, error: (err: any) => void, options?: FindSimilarOptions): void;
+    findSimilar(all: 'all', success: (groups: string[][], progress: SimilarityIndexProgress) => void, error: (err: any) => void, options?: FindSimilarOptions): void;
+
+    getTimeline(granularity: 'day' | 'month' | 'year', success: (timeline: Timeline) => void, error: (err: any) => void, filters?: TimelineFilters): void;
+
+    queryRegion(bbox: BoundingBox, success: (items: RegionItem[]) => void, error: (err: any) => void, options?: QueryRegionOptions): void;
+    clusterRegion(bbox: BoundingBox, zoom: number, success: (clusters: RegionCluster[]) => void, error: (err: any) => void, options?: RegionOptions): void;
+
+    getMetrics(success: (metrics: Metrics) => void, error?: (err: any) => void): void;
+    resetMetrics(success?: () => void, error?: (err: any) => void): void;
+
     saveImage(url: string, album: AlbumItem | string, success: (libraryItem: LibraryItem) => void, error: (err: any) => void, options?: GetThumbnailOptions): void;
 
-    saveVideo(url: string, album: AlbumItem | string, success: () => void, error: (err: any) => void): void;
+    saveImages(urls: string[], album: AlbumItem | string, success: (libraryItems: (LibraryItem | null)[]) => void, error: (err: any) => void, options?: GetThumbnailOptions): void;
+
+    saveVideo(url: string, album: AlbumItem | string, success: (libraryItem: LibraryItem) => void, error: (err: any) => void, options?: GetThumbnailOptions): void;
 
   }
 
@@ -45,6 +69,9 @@ declare module PhotoLibraryCordova {
     latitude?: number;
     longitude?: number;
     albumIds?: string[];
+    mediaType?: 'image' | 'video'; // android only for now
+    mimeType?: string;
+    duration?: number; // of videos, in milliseconds, android only for now
   }
 
   export interface AlbumItem {
@@ -56,6 +83,8 @@ declare module PhotoLibraryCordova {
     thumbnailWidth?: number;
     thumbnailHeight?: number;
     quality?: number;
+    outputFormat?: 'jpeg' | 'webp' | 'png';
+    targetByteSize?: number;
     itemsInChunk?: number;
     chunkTimeSec?: number;
     useOriginalFileNames?: boolean;
@@ -64,6 +93,12 @@ declare module PhotoLibraryCordova {
     includeCloudData?: boolean;
     includeVideos?: boolean;
     maxItems?: number;
+    compactIds?: boolean;
+  }
+
+  export interface GetLibraryItemsOptions extends GetThumbnailOptions {
+    includeAlbumData?: boolean;
+    compactIds?: boolean;
   }
 
   export interface RequestAuthorizationOptions {
@@ -75,11 +110,119 @@ declare module PhotoLibraryCordova {
     thumbnailWidth?: number;
     thumbnailHeight?: number;
     quality?: number;
+    outputFormat?: 'jpeg' | 'webp' | 'png';
+    targetByteSize?: number;
   }
 
   export interface GetPhotoOptions {
   }
 
+  // Thumbnail options are for the preview, pass same ones as to getLibrary so the preview is taken from the cache
+  export interface ProgressiveGetPhotoOptions extends GetThumbnailOptions {
+    progressive: true;
+  }
+
+  export interface PhotoRect {
+    x: number;
+    y: number;
+    width: number;
+    height: number;
+  }
+
+  export interface GetPhotoRegionOptions {
+    quality?: number; // 0.9 by default
+    outputFormat?: 'jpeg' | 'webp' | 'png';
+  }
+
+  export interface ExportPhotosOptions {
+    applyOrientation?: boolean; // re-encode rotated jpegs upright, instead of copying them as is
+    onProgress?: (file: ExportedFile, completed: number, total: number) => void;
+  }
+
+  export interface ExportedFile {
+    id: string;
+    index: number; // in photoIds
+    url?: string; // file url of the copy
+    size?: number;
+    error?: string;
+  }
+
+  export interface FindSimilarOptions {
+    threshold?: number;
+    compactIds?: boolean;
+  }
+
+  export interface SimilarityIndexProgress {
+    isComplete: boolean; // when false, photos not hashed yet are missing from the result
+    indexed: number;
+    total: number;
+  }
+
+  export interface TimelineFilters {
+    albumId?: string | AlbumItem;
+    from?: Date;
+    to?: Date; // exclusive
+    includeImages?: boolean; // default true, as in getLibrary
+    includeVideos?: boolean; // default false, as in getLibrary
+  }
+
+  export interface Timeline {
+    granularity: 'day' | 'month' | 'year';
+    buckets: string[]; // 'yyyy-mm-dd', 'yyyy-mm' or 'yyyy' in device time zone, most recent first
+    counts: number[];
+  }
+
+  export interface BoundingBox {
+    south: number;
+    west: number;
+    north: number;
+    east: number;
+  }
+
+  export interface RegionOptions {
+    compactIds?: boolean;
+  }
+
+  export interface QueryRegionOptions extends RegionOptions {
+    limit?: number; // most recent photos to return, default 1000, 0 for no limit
+  }
+
+  export interface RegionItem {
+    id: string;
+    latitude: number;
+    longitude: number;
+  }
+
+  export interface RegionCluster {
+    id: string; // most recent photo of the cluster
+    count: number;
+    latitude: number;
+    longitude: number;
+  }
+
+  export interface LatencyHistogram {
+    count: number;
+    meanMs: number;
+    maxMs: number;
+    p50Ms: number;
+    p90Ms: number;
+    p99Ms: number;
+  }
+
+  export interface Metrics {
+    periodMs: number;
+    actions: { [action: string]: LatencyHistogram };
+    stages: { [stage: string]: LatencyHistogram };
+    bridgeBytes: { [action: string]: number, total: number };
+    caches: {
+      thumbnail: { hits: number, misses: number, coalesced: number, hitRate: number },
+      imagePath: { hits: number, misses: number, hitRate: number },
+      videoFrame: { hits: number, misses: number, hitRate: number },
+    };
+    queues: { pendingActions: number, activeActions: number, inFlightDecodes: number, decodesWaitingForMemory: number };
+    memory: { decodeBudgetBytes: number, decodeBytesInUse: number, downgradedDecodes: number, trims: number };
+  }
+
 }
 
 interface CordovaPlugins {
@@ -1,18 +1,27 @@
 package com.terikon.cordova.photolibrary;
 
 import android.Manifest;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.util.Base64;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.cordova.*;
 import org.json.JSONArray;
@@ -26,17 +35,35 @@ public class PhotoLibrary extends CordovaPlugin {
   public static final int DEFAULT_WIDTH = 512;
   public static final int DEFAULT_HEIGHT = 384;
   public static final double DEFAULT_QUALITY = 0.5;
+  public static final double DEFAULT_REGION_QUALITY = 0.9; // regions are looked at closely, in zoom
+  public static final int DEFAULT_SIMILARITY_THRESHOLD = 10; // of 64 bits of perceptual hash
+  public static final String DEFAULT_OUTPUT_FORMAT = PhotoLibraryService.FORMAT_JPEG;
 
   public static final String ACTION_GET_LIBRARY = "getLibrary";
+  public static final String ACTION_CANCEL_LIBRARY = "cancelLibrary";
+  public static final String ACTION_GET_LIBRARY_ITEMS = "getLibraryItems";
   public static final String ACTION_GET_ALBUMS = "getAlbums";
   public static final String ACTION_GET_THUMBNAIL = "getThumbnail";
   public static final String ACTION_GET_PHOTO = "getPhoto";
+  public static final String ACTION_CANCEL_PHOTO = "cancelPhoto";
+  public static final String ACTION_GET_PHOTO_REGION = "getPhotoRegion";
   public static final String ACTION_STOP_CACHING = "stopCaching";
   public static final String ACTION_REQUEST_AUTHORIZATION = "requestAuthorization";
   public static final String ACTION_SAVE_IMAGE = "saveImage";
+  public static final String ACTION_SAVE_IMAGES = "saveImages";
   public static final String ACTION_SAVE_VIDEO = "saveVideo";
-
-  public CallbackContext callbackContext;
+  public static final String ACTION_EXPORT_PHOTOS = "exportPhotos";
+  public static final String ACTION_FIND_SIMILAR = "findSimilar";
+  public static final String ACTION_GET_TIMELINE = "getTimeline";
+  public static final String ACTION_QUERY_REGION = "queryRegion";
+  public static final String ACTION_CLUSTER_REGION = "clusterRegion";
+  public static final String ACTION_GET_METRICS = "getMetrics";
+  public static final String ACTION_RESET_METRICS = "resetMetrics";
+
+  // Keys of metrics for content served by cdvphotolibrary urls
+  public static final String METRICS_THUMBNAIL_URL = "thumbnailURL";
+  public static final String METRICS_PHOTO_URL = "photoURL";
+  public static final String METRICS_TILE_URL = "tileURL";
 
   @Override
   protected void pluginInitialize() {
@@ -44,17 +71,30 @@ public class PhotoLibrary extends CordovaPlugin {
 
     service = PhotoLibraryService.getInstance();
 
+    getContext().registerComponentCallbacks(memoryCallbacks);
+    service.startObservingLibrary(getContext());
+
   }
 
   @Override
-  public boolean execute(String action, final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+  public void onDestroy() {
+    getContext().unregisterComponentCallbacks(memoryCallbacks);
+    service.stopObservingLibrary(getContext());
+    super.onDestroy();
+  }
 
-    this.callbackContext = callbackContext;
+  @Override
+  public boolean execute(String action, final JSONArray args, final CallbackContext callbackContext) throws JSONException {
 
     try {
 
       if (ACTION_GET_LIBRARY.equals(action)) {
-        cordova.getThreadPool().execute(new Runnable() {
+
+        // Session is registered before going to thread pool, so cancelLibrary that follows getLibrary will always find it
+        final String sessionId = args.optJSONObject(0).optString("sessionId", null);
+        service.beginSession(sessionId);
+
+        runInBackground(action, new Runnable() {
           public void run() {
             try {
 
@@ -62,23 +102,27 @@ public class PhotoLibrary extends CordovaPlugin {
               final int itemsInChunk = options.getInt("itemsInChunk");
               final double chunkTimeSec = options.getDouble("chunkTimeSec");
               final boolean includeAlbumData = options.getBoolean("includeAlbumData");
+              final boolean compactIds = options.optBoolean("compactIds", false);
+              final boolean includeImages = options.optBoolean("includeImages", true);
+              final boolean includeVideos = options.optBoolean("includeVideos", false);
 
               if (!cordova.hasPermission(READ_EXTERNAL_STORAGE)) {
                 callbackContext.error(service.PERMISSION_ERROR);
                 return;
               }
 
-              PhotoLibraryGetLibraryOptions getLibraryOptions = new PhotoLibraryGetLibraryOptions(itemsInChunk, chunkTimeSec, includeAlbumData);
+              PhotoLibraryGetLibraryOptions getLibraryOptions = new PhotoLibraryGetLibraryOptions(itemsInChunk, chunkTimeSec, includeImages,
+                includeVideos, includeAlbumData, sessionId, compactIds);
 
               service.getLibrary(getContext(), getLibraryOptions, new PhotoLibraryService.ChunkResultRunnable() {
                 @Override
-                public void run(ArrayList<JSONObject> library, int chunkNum, boolean isLastChunk) {
+                public void run(ArrayList<JSONObject> library, int chunkNum, boolean isLastChunk, boolean isCancelled) {
                   try {
 
-                    JSONObject result = createGetLibraryResult(library, chunkNum, isLastChunk);
+                    JSONObject result = createGetLibraryResult(library, chunkNum, isLastChunk, isCancelled);
                     PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, result);
                     pluginResult.setKeepCallback(!isLastChunk);
-                    callbackContext.sendPluginResult(pluginResult);
+                    sendPluginResult(ACTION_GET_LIBRARY, callbackContext, pluginResult);
 
                   } catch (Exception e) {
                     e.printStackTrace();
@@ -87,6 +131,46 @@ public class PhotoLibrary extends CordovaPlugin {
                 }
               });
 
+            } catch (Exception e) {
+              e.printStackTrace();
+              callbackContext.error(e.getMessage());
+            } finally {
+              service.endSession(sessionId);
+            }
+          }
+        });
+        return true;
+
+      } else if (ACTION_CANCEL_LIBRARY.equals(action)) {
+
+        final String sessionId = args.getString(0);
+        boolean found = service.cancelSession(sessionId);
+        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, found));
+        return true;
+
+      } else if (ACTION_GET_LIBRARY_ITEMS.equals(action)) {
+        runInBackground(action, new Runnable() {
+          public void run() {
+            try {
+
+              final JSONArray photoIdsArray = args.getJSONArray(0);
+              final JSONObject options = args.optJSONObject(1);
+              final boolean includeAlbumData = options != null && options.optBoolean("includeAlbumData", false);
+              final boolean compactIds = options != null && options.optBoolean("compactIds", false);
+
+              if (!cordova.hasPermission(READ_EXTERNAL_STORAGE)) {
+                callbackContext.error(service.PERMISSION_ERROR);
+                return;
+              }
+
+              List<String> photoIds = new ArrayList<String>(photoIdsArray.length());
+              for (int i = 0; i < photoIdsArray.length(); i++) {
+                photoIds.add(photoIdsArray.getString(i));
+              }
+
+              JSONArray libraryItems = service.getLibraryItems(getContext(), photoIds, includeAlbumData, compactIds);
+              sendPluginResult(ACTION_GET_LIBRARY_ITEMS, callbackContext, new PluginResult(PluginResult.Status.OK, libraryItems));
+
             } catch (Exception e) {
               e.printStackTrace();
               callbackContext.error(e.getMessage());
@@ -96,7 +180,7 @@ public class PhotoLibrary extends CordovaPlugin {
         return true;
 
       } else if (ACTION_GET_ALBUMS.equals(action)) {
-        cordova.getThreadPool().execute(new Runnable() {
+        runInBackground(action, new Runnable() {
           public void run() {
             try {
 
@@ -107,7 +191,7 @@ public class PhotoLibrary extends CordovaPlugin {
 
               ArrayList<JSONObject> albums = service.getAlbums(getContext());
 
-              callbackContext.success(createGetAlbumsResult(albums));
+              sendPluginResult(ACTION_GET_ALBUMS, callbackContext, new PluginResult(PluginResult.Status.OK, createGetAlbumsResult(albums)));
 
             } catch (Exception e) {
               e.printStackTrace();
@@ -118,7 +202,7 @@ public class PhotoLibrary extends CordovaPlugin {
         return true;
 
       } else if (ACTION_GET_THUMBNAIL.equals(action)) {
-        cordova.getThreadPool().execute(new Runnable() {
+        runInBackground(action, new Runnable() {
           public void run() {
             try {
 
@@ -127,14 +211,22 @@ public class PhotoLibrary extends CordovaPlugin {
               final int thumbnailWidth = options.getInt("thumbnailWidth");
               final int thumbnailHeight = options.getInt("thumbnailHeight");
               final double quality = options.getDouble("quality");
+              final String outputFormat = options.optString("outputFormat", DEFAULT_OUTPUT_FORMAT).toLowerCase();
+              final int targetByteSize = options.optInt("targetByteSize", 0);
+
+              if (!PhotoLibraryService.isSupportedOutputFormat(outputFormat)) {
+                callbackContext.error("Unsupported outputFormat: " + outputFormat);
+                return;
+              }
 
               if (!cordova.hasPermission(READ_EXTERNAL_STORAGE)) {
                 callbackContext.error(service.PERMISSION_ERROR);
                 return;
               }
 
-              PhotoLibraryService.PictureData thumbnail = service.getThumbnail(getContext(), photoId, thumbnailWidth, thumbnailHeight, quality);
-              callbackContext.sendPluginResult(createMultipartPluginResult(PluginResult.Status.OK, thumbnail));
+              PhotoLibraryService.PictureData thumbnail = service.getThumbnail(getContext(), photoId, thumbnailWidth, thumbnailHeight, quality,
+                outputFormat, targetByteSize);
+              sendPictureResult(ACTION_GET_THUMBNAIL, callbackContext, thumbnail);
 
             } catch (Exception e) {
               e.printStackTrace();
@@ -146,19 +238,90 @@ public class PhotoLibrary extends CordovaPlugin {
 
       } else if (ACTION_GET_PHOTO.equals(action)) {
 
-        cordova.getThreadPool().execute(new Runnable() {
+        // Session of progressive getPhoto is registered before going to thread pool, so cancelPhoto always finds it
+        final JSONObject photoOptions = args.optJSONObject(1);
+        final String sessionId = photoOptions != null ? photoOptions.optString("sessionId", null) : null;
+        service.beginSession(sessionId);
+
+        runInBackground(action, new Runnable() {
           public void run() {
             try {
 
               final String photoId = args.getString(0);
+              final boolean progressive = photoOptions != null && photoOptions.optBoolean("progressive", false);
 
               if (!cordova.hasPermission(READ_EXTERNAL_STORAGE)) {
                 callbackContext.error(service.PERMISSION_ERROR);
                 return;
               }
 
-              PhotoLibraryService.PictureData photo = service.getPhoto(getContext(), photoId);
-              callbackContext.sendPluginResult(createMultipartPluginResult(PluginResult.Status.OK, photo));
+              AtomicBoolean cancelled = service.getSession(sessionId);
+
+              if (progressive) {
+                // Preview is a thumbnail with options of getLibrary, so it is usually in the cache or in MediaStore already
+                final int thumbnailWidth = photoOptions.optInt("thumbnailWidth", DEFAULT_WIDTH);
+                final int thumbnailHeight = photoOptions.optInt("thumbnailHeight", DEFAULT_HEIGHT);
+                final double quality = photoOptions.optDouble("quality", DEFAULT_QUALITY);
+                final String outputFormat = photoOptions.optString("outputFormat", DEFAULT_OUTPUT_FORMAT).toLowerCase();
+                final int targetByteSize = photoOptions.optInt("targetByteSize", 0);
+                PhotoLibraryService.PictureData preview = service.getThumbnail(getContext(), photoId, thumbnailWidth, thumbnailHeight, quality,
+                  PhotoLibraryService.isSupportedOutputFormat(outputFormat) ? outputFormat : DEFAULT_OUTPUT_FORMAT, targetByteSize);
+                if (preview != null) {
+                  PhotoLibraryService.throwIfCancelled(cancelled);
+                  sendPreviewResult(ACTION_GET_PHOTO, callbackContext, preview);
+                }
+              }
+
+              PhotoLibraryService.PictureData photo = service.getPhoto(getContext(), photoId, cancelled);
+              PhotoLibraryService.throwIfCancelled(cancelled); // before base64, that is the slowest step of large photo
+              sendPictureResult(ACTION_GET_PHOTO, callbackContext, photo);
+
+            } catch (CancellationException e) {
+              callbackContext.error(e.getMessage());
+            } catch (Exception e) {
+              e.printStackTrace();
+              callbackContext.error(e.getMessage());
+            } finally {
+              service.endSession(sessionId);
+            }
+          }
+        });
+        return true;
+
+      } else if (ACTION_CANCEL_PHOTO.equals(action)) {
+
+        final String sessionId = args.getString(0);
+        boolean found = service.cancelSession(sessionId);
+        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, found));
+        return true;
+
+      } else if (ACTION_GET_PHOTO_REGION.equals(action)) {
+        runInBackground(action, new Runnable() {
+          public void run() {
+            try {
+
+              final String photoId = args.getString(0);
+              final JSONObject rect = args.getJSONObject(1);
+              final double scale = args.getDouble(2);
+              final JSONObject options = args.optJSONObject(3);
+              final double quality = options != null ? options.optDouble("quality", DEFAULT_REGION_QUALITY) : DEFAULT_REGION_QUALITY;
+              final String outputFormat = options != null ? options.optString("outputFormat", DEFAULT_OUTPUT_FORMAT).toLowerCase() : DEFAULT_OUTPUT_FORMAT;
+
+              if (!PhotoLibraryService.isSupportedOutputFormat(outputFormat)) {
+                callbackContext.error("Unsupported outputFormat: " + outputFormat);
+                return;
+              }
+
+              if (!cordova.hasPermission(READ_EXTERNAL_STORAGE)) {
+                callbackContext.error(service.PERMISSION_ERROR);
+                return;
+              }
+
+              int x = rect.getInt("x");
+              int y = rect.getInt("y");
+              PhotoLibraryService.PictureData region = service.getPhotoRegion(getContext(), photoId,
+                new Rect(x, y, x + rect.getInt("width"), y + rect.getInt("height")), scale, quality, outputFormat);
+              sendPictureResult(ACTION_GET_PHOTO_REGION, callbackContext, region);
 
             } catch (Exception e) {
               e.printStackTrace();
@@ -183,7 +346,7 @@ public class PhotoLibrary extends CordovaPlugin {
 
           if (read && !cordova.hasPermission(READ_EXTERNAL_STORAGE)
             || write && !cordova.hasPermission(WRITE_EXTERNAL_STORAGE)) {
-            requestAuthorization(read, write);
+            requestAuthorization(read, write, callbackContext);
           } else {
             callbackContext.success();
           }
@@ -194,7 +357,7 @@ public class PhotoLibrary extends CordovaPlugin {
         return true;
 
       } else if (ACTION_SAVE_IMAGE.equals(action)) {
-        cordova.getThreadPool().execute(new Runnable() {
+        runInBackground(action, new Runnable() {
           public void run() {
             try {
 
@@ -209,7 +372,40 @@ public class PhotoLibrary extends CordovaPlugin {
               service.saveImage(getContext(), cordova, url, album, new PhotoLibraryService.JSONObjectRunnable() {
                 @Override
                 public void run(JSONObject result) {
-                  callbackContext.success(result);
+                  sendPluginResult(ACTION_SAVE_IMAGE, callbackContext, new PluginResult(PluginResult.Status.OK, result));
+                }
+              });
+
+            } catch (Exception e) {
+              e.printStackTrace();
+              callbackContext.error(e.getMessage());
+            }
+          }
+        });
+        return true;
+
+      } else if (ACTION_SAVE_IMAGES.equals(action)) {
+        runInBackground(action, new Runnable() {
+          public void run() {
+            try {
+
+              final JSONArray urlsArray = args.getJSONArray(0);
+              final String album = args.getString(1);
+
+              if (!cordova.hasPermission(WRITE_EXTERNAL_STORAGE)) {
+                callbackContext.error(service.PERMISSION_ERROR);
+                return;
+              }
+
+              List<String> urls = new ArrayList<String>(urlsArray.length());
+              for (int i = 0; i < urlsArray.length(); i++) {
+                urls.add(urlsArray.getString(i));
+              }
+
+              service.saveImages(getContext(), cordova, urls, album, new PhotoLibraryService.JSONArrayRunnable() {
+                @Override
+                public void run(JSONArray result) {
+                  sendPluginResult(ACTION_SAVE_IMAGES, callbackContext, new PluginResult(PluginResult.Status.OK, result));
                 }
               });
 
@@ -222,7 +418,7 @@ public class PhotoLibrary extends CordovaPlugin {
         return true;
 
       } else if (ACTION_SAVE_VIDEO.equals(action)) {
-        cordova.getThreadPool().execute(new Runnable() {
+        runInBackground(action, new Runnable() {
           public void run() {
             try {
 
@@ -234,9 +430,174 @@ public class PhotoLibrary extends CordovaPlugin {
                 return;
               }
 
-              service.saveVideo(getContext(), cordova, url, album);
+              service.saveVideo(getContext(), cordova, url, album, new PhotoLibraryService.JSONObjectRunnable() {
+                @Override
+                public void run(JSONObject result) {
+                  sendPluginResult(ACTION_SAVE_VIDEO, callbackContext, new PluginResult(PluginResult.Status.OK, result));
+                }
+              });
+
+            } catch (Exception e) {
+              e.printStackTrace();
+              callbackContext.error(e.getMessage());
+            }
+          }
+        });
+        return true;
+
+      } else if (ACTION_EXPORT_PHOTOS.equals(action)) {
+        runInBackground(action, new Runnable() {
+          public void run() {
+            try {
+
+              final JSONArray photoIdsArray = args.getJSONArray(0);
+              final String targetDir = args.getString(1);
+              final JSONObject options = args.optJSONObject(2);
+              final boolean applyOrientation = options != null && options.optBoolean("applyOrientation", false);
+
+              if (!cordova.hasPermission(READ_EXTERNAL_STORAGE)) {
+                callbackContext.error(service.PERMISSION_ERROR);
+                return;
+              }
+
+              ArrayList<String> photoIds = new ArrayList<String>(photoIdsArray.length());
+              for (int i = 0; i < photoIdsArray.length(); i++) {
+                photoIds.add(photoIdsArray.getString(i));
+              }
+
+              // targetDir is a file url, as cordova.file.dataDirectory, or a path
+              File targetDirFile = targetDir.startsWith("file:") ? new File(new URI(targetDir)) : new File(targetDir);
+
+              JSONArray files = service.exportPhotos(getContext(), photoIds, targetDirFile, applyOrientation,
+                new PhotoLibraryService.ExportProgressRunnable() {
+                  @Override
+                  public void run(JSONObject file, int completed, int total) {
+                    try {
+
+                      JSONObject progress = new JSONObject();
+                      progress.put("file", file);
+                      progress.put("completed", completed);
+                      progress.put("total", total);
+                      PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, progress);
+                      pluginResult.setKeepCallback(true);
+                      sendPluginResult(ACTION_EXPORT_PHOTOS, callbackContext, pluginResult);
+
+                    } catch (JSONException e) {
+                      e.printStackTrace();
+                    }
+                  }
+                });
+
+              JSONObject result = new JSONObject();
+              result.put("files", files);
+              sendPluginResult(ACTION_EXPORT_PHOTOS, callbackContext, new PluginResult(PluginResult.Status.OK, result));
+
+            } catch (Exception e) {
+              e.printStackTrace();
+              callbackContext.error(e.getMessage());
+            }
+          }
+        });
+        return true;
+
+      } else if (ACTION_FIND_SIMILAR.equals(action)) {
+        runInBackground(action, new Runnable() {
+          public void run() {
+            try {
+
+              final String photoId = args.getString(0);
+              final JSONObject options = args.optJSONObject(1);
+              final int threshold = options != null ? options.optInt("threshold", DEFAULT_SIMILARITY_THRESHOLD) : DEFAULT_SIMILARITY_THRESHOLD;
+              final boolean compactIds = options != null && options.optBoolean("compactIds", false);
+
+              if (!cordova.hasPermission(READ_EXTERNAL_STORAGE)) {
+                callbackContext.error(service.PERMISSION_ERROR);
+                return;
+              }
+
+              JSONObject similar = service.findSimilar(getContext(), "all".equals(photoId) ? null : photoId, threshold, compactIds);
+              sendPluginResult(ACTION_FIND_SIMILAR, callbackContext, new PluginResult(PluginResult.Status.OK, similar));
+
+            } catch (Exception e) {
+              e.printStackTrace();
+              callbackContext.error(e.getMessage());
+            }
+          }
+        });
+        return true;
+
+      } else if (ACTION_GET_TIMELINE.equals(action)) {
+        runInBackground(action, new Runnable() {
+          public void run() {
+            try {
+
+              final String granularity = args.getString(0);
+              final JSONObject filters = args.optJSONObject(1);
+
+              if (!PhotoLibraryTimeline.isSupportedGranularity(granularity)) {
+                callbackContext.error("Unsupported granularity: " + granularity);
+                return;
+              }
+
+              if (!cordova.hasPermission(READ_EXTERNAL_STORAGE)) {
+                callbackContext.error(service.PERMISSION_ERROR);
+                return;
+              }
+
+              JSONObject timeline = service.getTimeline(getContext(), granularity, filters);
+              sendPluginResult(ACTION_GET_TIMELINE, callbackContext, new PluginResult(PluginResult.Status.OK, timeline));
+
+            } catch (Exception e) {
+              e.printStackTrace();
+              callbackContext.error(e.getMessage());
+            }
+          }
+        });
+        return true;
+
+      } else if (ACTION_QUERY_REGION.equals(action)) {
+        runInBackground(action, new Runnable() {
+          public void run() {
+            try {
+
+              final JSONObject bbox = args.getJSONObject(0);
+              final JSONObject options = args.optJSONObject(1);
+              final int limit = options != null ? options.optInt("limit", 0) : 0;
+              final boolean compactIds = options != null && options.optBoolean("compactIds", false);
+
+              if (!cordova.hasPermission(READ_EXTERNAL_STORAGE)) {
+                callbackContext.error(service.PERMISSION_ERROR);
+                return;
+              }
+
+              JSONArray items = service.queryRegion(getContext(), bbox, limit, compactIds);
+              sendPluginResult(ACTION_QUERY_REGION, callbackContext, new PluginResult(PluginResult.Status.OK, items));
+
+            } catch (Exception e) {
+              e.printStackTrace();
+              callbackContext.error(e.getMessage());
+            }
+          }
+        });
+        return true;
+
+      } else if (ACTION_CLUSTER_REGION.equals(action)) {
+        runInBackground(action, new Runnable() {
+          public void run() {
+            try {
 
-              callbackContext.success();
+              final JSONObject bbox = args.getJSONObject(0);
+              final int zoom = args.getInt(1);
+              final JSONObject options = args.optJSONObject(2);
+              final boolean compactIds = options != null && options.optBoolean("compactIds", false);
+
+              if (!cordova.hasPermission(READ_EXTERNAL_STORAGE)) {
+                callbackContext.error(service.PERMISSION_ERROR);
+                return;
+              }
+
+              JSONArray clusters = service.clusterRegion(getContext(), bbox, zoom, compactIds);
+              sendPluginResult(ACTION_CLUSTER_REGION, callbackContext, new PluginResult(PluginResult.Status.OK, clusters));
 
             } catch (Exception e) {
               e.printStackTrace();
@@ -246,6 +607,17 @@ public class PhotoLibrary extends CordovaPlugin {
         });
         return true;
 
+      } else if (ACTION_GET_METRICS.equals(action)) {
+
+        callbackContext.success(service.getMetrics().toJSON());
+        return true;
+
+      } else if (ACTION_RESET_METRICS.equals(action)) {
+
+        service.getMetrics().reset();
+        callbackContext.success();
+        return true;
+
       }
 
       return false;
@@ -274,8 +646,9 @@ public class PhotoLibrary extends CordovaPlugin {
 
     boolean isThumbnail = origUri.getHost().toLowerCase().equals("thumbnail") && origUri.getPath().isEmpty();
     boolean isPhoto = origUri.getHost().toLowerCase().equals("photo") && origUri.getPath().isEmpty();
+    boolean isTile = origUri.getHost().toLowerCase().equals("tile") && origUri.getPath().isEmpty();
 
-    if (!isThumbnail && !isPhoto) {
+    if (!isThumbnail && !isPhoto && !isTile) {
       throw new FileNotFoundException("URI not supported by PhotoLibrary");
     }
 
@@ -310,63 +683,227 @@ public class PhotoLibrary extends CordovaPlugin {
         throw new FileNotFoundException("Incorrect 'quality' query parameter");
       }
 
-      PhotoLibraryService.PictureData thumbnailData = service.getThumbnail(getContext(), photoId, width, height, quality);
+      String formatStr = origUri.getQueryParameter("format");
+      String outputFormat = formatStr == null || formatStr.isEmpty() ? DEFAULT_OUTPUT_FORMAT : formatStr.toLowerCase();
+      if (!PhotoLibraryService.isSupportedOutputFormat(outputFormat)) {
+        throw new FileNotFoundException("Incorrect 'format' query parameter");
+      }
+
+      String targetByteSizeStr = origUri.getQueryParameter("targetByteSize");
+      int targetByteSize;
+      try {
+        targetByteSize = targetByteSizeStr == null || targetByteSizeStr.isEmpty() ? 0 : Integer.parseInt(targetByteSizeStr);
+      } catch (NumberFormatException e) {
+        throw new FileNotFoundException("Incorrect 'targetByteSize' query parameter");
+      }
+
+      long start = PhotoLibraryMetrics.start();
+
+      PhotoLibraryService.PictureData thumbnailData = service.getThumbnail(getContext(), photoId, width, height, quality, outputFormat, targetByteSize);
 
       if (thumbnailData == null) {
         throw new FileNotFoundException("Could not create thumbnail");
       }
 
+      service.getMetrics().recordAction(METRICS_THUMBNAIL_URL, start);
+      service.getMetrics().addBridgeBytes(METRICS_THUMBNAIL_URL, thumbnailData.bytes.length);
+
       InputStream is = new ByteArrayInputStream(thumbnailData.bytes);
 
       return new CordovaResourceApi.OpenForReadResult(uri, is, thumbnailData.mimeType, is.available(), null);
 
+    } else if (isTile) {
+
+      int x = parseIntParameter(origUri, "x");
+      int y = parseIntParameter(origUri, "y");
+      int width = parseIntParameter(origUri, "width");
+      int height = parseIntParameter(origUri, "height");
+
+      String scaleStr = origUri.getQueryParameter("scale");
+      double scale;
+      try {
+        scale = scaleStr == null || scaleStr.isEmpty() ? 1 : Double.parseDouble(scaleStr);
+      } catch (NumberFormatException e) {
+        throw new FileNotFoundException("Incorrect 'scale' query parameter");
+      }
+      if (!(scale > 0)) {
+        throw new FileNotFoundException("Incorrect 'scale' query parameter");
+      }
+
+      String qualityStr = origUri.getQueryParameter("quality");
+      double quality;
+      try {
+        quality = qualityStr == null || qualityStr.isEmpty() ? DEFAULT_REGION_QUALITY : Double.parseDouble(qualityStr);
+      } catch (NumberFormatException e) {
+        throw new FileNotFoundException("Incorrect 'quality' query parameter");
+      }
+
+      String formatStr = origUri.getQueryParameter("format");
+      String outputFormat = formatStr == null || formatStr.isEmpty() ? DEFAULT_OUTPUT_FORMAT : formatStr.toLowerCase();
+      if (!PhotoLibraryService.isSupportedOutputFormat(outputFormat)) {
+        throw new FileNotFoundException("Incorrect 'format' query parameter");
+      }
+
+      long start = PhotoLibraryMetrics.start();
+
+      PhotoLibraryService.PictureData tileData;
+      try {
+        tileData = service.getPhotoRegion(getContext(), photoId, new Rect(x, y, x + width, y + height), scale, quality, outputFormat);
+      } catch (IllegalArgumentException e) {
+        throw new FileNotFoundException(e.getMessage());
+      }
+
+      service.getMetrics().recordAction(METRICS_TILE_URL, start);
+      service.getMetrics().addBridgeBytes(METRICS_TILE_URL, tileData.bytes.length);
+
+      InputStream is = new ByteArrayInputStream(tileData.bytes);
+
+      return new CordovaResourceApi.OpenForReadResult(uri, is, tileData.mimeType, is.available(), null);
+
     } else { // isPhoto == true
 
+      long start = PhotoLibraryMetrics.start();
+
       PhotoLibraryService.PictureAsStream pictureAsStream = service.getPhotoAsStream(getContext(), photoId);
       InputStream is = pictureAsStream.getStream();
 
+      // Photo is streamed to webview after this point, so latency is until the stream is ready
+      service.getMetrics().recordAction(METRICS_PHOTO_URL, start);
+      service.getMetrics().addBridgeBytes(METRICS_PHOTO_URL, is.available());
+
       return new CordovaResourceApi.OpenForReadResult(uri, is, pictureAsStream.getMimeType(), is.available(), null);
 
     }
 
   }
 
+  private static int parseIntParameter(Uri uri, String name) throws FileNotFoundException {
+    String str = uri.getQueryParameter(name);
+    if (str == null || str.isEmpty()) {
+      throw new FileNotFoundException("Missing '" + name + "' query parameter");
+    }
+    try {
+      return Integer.parseInt(str);
+    } catch (NumberFormatException e) {
+      throw new FileNotFoundException("Incorrect '" + name + "' query parameter");
+    }
+  }
+
   @Override
   public void onRequestPermissionResult(int requestCode, String[] permissions, int[] grantResults) throws JSONException {
     super.onRequestPermissionResult(requestCode, permissions, grantResults);
 
+    CallbackContext callbackContext = authorizationCallbacks.remove(requestCode);
+    if (callbackContext == null) {
+      return;
+    }
+
     for (int r : grantResults) {
       if (r == PackageManager.PERMISSION_DENIED) {
-        this.callbackContext.error(PhotoLibraryService.PERMISSION_ERROR);
+        callbackContext.error(PhotoLibraryService.PERMISSION_ERROR);
         return;
       }
     }
 
-    this.callbackContext.success();
+    callbackContext.success();
   }
 
   private static final String READ_EXTERNAL_STORAGE = android.Manifest.permission.READ_EXTERNAL_STORAGE;
   private static final String WRITE_EXTERNAL_STORAGE = Manifest.permission.WRITE_EXTERNAL_STORAGE;
-  private static final int REQUEST_AUTHORIZATION_REQ_CODE = 0;
+
+  // Each requestAuthorization gets its own request code, so concurrent permission flows do not answer each other's callbacks
+  private final AtomicInteger nextRequestCode = new AtomicInteger(0);
+  private final ConcurrentHashMap<Integer, CallbackContext> authorizationCallbacks = new ConcurrentHashMap<Integer, CallbackContext>();
 
   private PhotoLibraryService service;
 
+  // Plugins do not receive memory callbacks from cordova, so they are taken from application context
+  private final ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2() {
+    @Override
+    public void onTrimMemory(int level) {
+      service.trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+      service.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+  };
+
   private Context getContext() {
 
     return this.cordova.getActivity().getApplicationContext();
 
   }
 
-  private PluginResult createMultipartPluginResult(PluginResult.Status status, PhotoLibraryService.PictureData pictureData) throws JSONException {
+  // Runs action on cordova thread pool, measuring time it waits for a thread and its total latency
+  private void runInBackground(final String action, final Runnable runnable) {
+
+    final PhotoLibraryMetrics metrics = service.getMetrics();
+    final long start = PhotoLibraryMetrics.start();
+
+    metrics.pendingActions.incrementAndGet();
+
+    cordova.getThreadPool().execute(new Runnable() {
+      public void run() {
+        metrics.pendingActions.decrementAndGet();
+        metrics.activeActions.incrementAndGet();
+        try {
+          runnable.run();
+        } finally {
+          metrics.activeActions.decrementAndGet();
+          metrics.recordAction(action, start);
+        }
+      }
+    });
+
+  }
+
+  private void sendPluginResult(String action, CallbackContext callbackContext, PluginResult pluginResult) {
+
+    String message = pluginResult.getMessage();
+    if (message != null) {
+      service.getMetrics().addBridgeBytes(action, message.length());
+    }
+
+    callbackContext.sendPluginResult(pluginResult);
+
+  }
+
+  private void sendPictureResult(String action, CallbackContext callbackContext, PhotoLibraryService.PictureData pictureData) throws JSONException {
+
+    long start = PhotoLibraryMetrics.start();
+    PluginResult pluginResult = createMultipartPluginResult(PluginResult.Status.OK, pictureData);
+    service.getMetrics().recordStage(PhotoLibraryMetrics.STAGE_BASE64, start);
+
+    sendPluginResult(action, callbackContext, pluginResult);
+
+  }
+
+  // First result of progressive getPhoto, the callback is kept for the full photo
+  private void sendPreviewResult(String action, CallbackContext callbackContext, PhotoLibraryService.PictureData pictureData) throws JSONException {
+
+    long start = PhotoLibraryMetrics.start();
+    JSONObject resultJSON = createPictureJSON(pictureData);
+    resultJSON.put("isPreview", true);
+    PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, resultJSON);
+    pluginResult.setKeepCallback(true);
+    service.getMetrics().recordStage(PhotoLibraryMetrics.STAGE_BASE64, start);
+
+    sendPluginResult(action, callbackContext, pluginResult);
+
+  }
+
+  static PluginResult createMultipartPluginResult(PluginResult.Status status, PhotoLibraryService.PictureData pictureData) throws JSONException {
 
     // As cordova-android 6.x uses EVAL_BRIDGE, and it breaks support for multipart result, we will encode result by ourselves.
     // see encodeAsJsMessage method of https://github.com/apache/cordova-android/blob/master/framework/src/org/apache/cordova/NativeToJsMessageQueue.java
 
-    JSONObject resultJSON = new JSONObject();
-    resultJSON.put("data", Base64.encodeToString(pictureData.bytes, Base64.NO_WRAP));
-    resultJSON.put("mimeType", pictureData.mimeType);
-
-    return new PluginResult(status, resultJSON);
+    return new PluginResult(status, createPictureJSON(pictureData));
 
 // This is old good code that worked with cordova-android 5.x
 //    return new PluginResult(status,
@@ -376,7 +913,14 @@ public class PhotoLibrary extends CordovaPlugin {
 
   }
 
-  private void requestAuthorization(boolean read, boolean write) {
+  private static JSONObject createPictureJSON(PhotoLibraryService.PictureData pictureData) throws JSONException {
+    JSONObject resultJSON = new JSONObject();
+    resultJSON.put("data", Base64.encodeToString(pictureData.bytes, Base64.NO_WRAP));
+    resultJSON.put("mimeType", pictureData.mimeType);
+    return resultJSON;
+  }
+
+  private void requestAuthorization(boolean read, boolean write, CallbackContext callbackContext) {
 
     List<String> permissions = new ArrayList<String>();
 
@@ -388,17 +932,22 @@ public class PhotoLibrary extends CordovaPlugin {
       permissions.add(WRITE_EXTERNAL_STORAGE);
     }
 
-    cordova.requestPermissions(this, REQUEST_AUTHORIZATION_REQ_CODE, permissions.toArray(new String[0]));
+    // Request code should fit in lower 16 bits
+    int requestCode = nextRequestCode.getAndIncrement() & 0xFFFF;
+    authorizationCallbacks.put(requestCode, callbackContext);
+
+    cordova.requestPermissions(this, requestCode, permissions.toArray(new String[0]));
   }
 
   private static JSONArray createGetAlbumsResult(ArrayList<JSONObject> albums) throws JSONException {
     return new JSONArray(albums);
   }
 
-  private static JSONObject createGetLibraryResult(ArrayList<JSONObject> library, int chunkNum, boolean isLastChunk) throws JSONException {
+  static JSONObject createGetLibraryResult(ArrayList<JSONObject> library, int chunkNum, boolean isLastChunk, boolean isCancelled) throws JSONException {
     JSONObject result = new JSONObject();
     result.put("chunkNum", chunkNum);
     result.put("isLastChunk", isLastChunk);
+    result.put("isCancelled", isCancelled);
     result.put("library", new JSONArray(library));
     return result;
   }
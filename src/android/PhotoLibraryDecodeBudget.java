@@ -0,0 +1,82 @@
+package com.terikon.cordova.photolibrary;
+
+import android.graphics.BitmapFactory;
+
+import java.io.InterruptedIOException;
+
+// Bounds total memory of bitmaps that are decoded at the same time, so parallel requests can not run out of memory together.
+// Decodes that do not fit wait until others release their memory.
+public class PhotoLibraryDecodeBudget {
+
+  private final long capacity;
+  private final PhotoLibraryMetrics metrics;
+
+  private long usedBytes = 0;
+
+  public PhotoLibraryDecodeBudget(long capacity, PhotoLibraryMetrics metrics) {
+    this.capacity = capacity;
+    this.metrics = metrics;
+    metrics.decodeBudgetBytes.set(capacity);
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  // Bytes needed to decode image with bounds and inSampleSize of options, as ARGB_8888 bitmap.
+  // Rotation creates a copy of the bitmap while the decoded one is still alive, so it doubles the estimate.
+  public static long estimateBytes(BitmapFactory.Options options, boolean rotated) {
+    int sampleSize = Math.max(1, options.inSampleSize);
+    long width = (options.outWidth + sampleSize - 1) / sampleSize;
+    long height = (options.outHeight + sampleSize - 1) / sampleSize;
+    long bytes = width * height * 4;
+    return rotated ? bytes * 2 : bytes;
+  }
+
+  // Raises inSampleSize of options while the decode can not fit into whole budget. Returns true if it was raised.
+  public boolean downgradeToFit(BitmapFactory.Options options, boolean rotated) {
+    boolean downgraded = false;
+    options.inSampleSize = Math.max(1, options.inSampleSize);
+    while (estimateBytes(options, rotated) > capacity) {
+      options.inSampleSize *= 2;
+      downgraded = true;
+    }
+    return downgraded;
+  }
+
+  // Blocks until bytes fit into the budget. Returns bytes to pass to release.
+  public synchronized long acquire(long bytes) throws InterruptedIOException {
+
+    bytes = Math.min(bytes, capacity); // otherwise it would never fit
+
+    if (usedBytes + bytes > capacity) {
+      metrics.decodesWaitingForMemory.incrementAndGet();
+      try {
+        while (usedBytes + bytes > capacity) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for memory to decode");
+      } finally {
+        metrics.decodesWaitingForMemory.decrementAndGet();
+      }
+    }
+
+    usedBytes += bytes;
+    metrics.decodeBytesInUse.set(usedBytes);
+
+    return bytes;
+
+  }
+
+  public synchronized void release(long bytes) {
+    if (bytes == 0) {
+      return;
+    }
+    usedBytes -= bytes;
+    metrics.decodeBytesInUse.set(usedBytes);
+    notifyAll();
+  }
+
+}
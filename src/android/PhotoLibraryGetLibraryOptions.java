@@ -4,12 +4,21 @@ public class PhotoLibraryGetLibraryOptions {
 
   public final int itemsInChunk;
   public final double chunkTimeSec;
+  public final boolean includeImages;
+  public final boolean includeVideos;
   public final boolean includeAlbumData;
+  public final String sessionId;
+  public final boolean compactIds;
 
-  public PhotoLibraryGetLibraryOptions(int itemsInChunk, double chunkTimeSec, boolean includeAlbumData) {
+  public PhotoLibraryGetLibraryOptions(int itemsInChunk, double chunkTimeSec, boolean includeImages, boolean includeVideos, boolean includeAlbumData,
+    String sessionId, boolean compactIds) {
     this.itemsInChunk = itemsInChunk;
     this.chunkTimeSec = chunkTimeSec;
+    this.includeImages = includeImages;
+    this.includeVideos = includeVideos;
     this.includeAlbumData = includeAlbumData;
+    this.sessionId = sessionId;
+    this.compactIds = compactIds;
   }
 
 }
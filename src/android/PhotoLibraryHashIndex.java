@@ -0,0 +1,655 @@
+package com.terikon.cordova.photolibrary;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Process;
+import android.provider.MediaStore;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Perceptual hashes of library images, for finding near duplicates and bursts without sending thumbnails to javascript.
+// Hashes are computed on a background thread, and stored in app files keyed by _ID and DATE_MODIFIED,
+// so only new and changed images are hashed on later updates. Once findSimilar was used, the index is updated
+// in background when the plugin starts and when the library changes, and findSimilar answers from what is indexed so far.
+// Index file is a log that every new hash is appended to, so progress survives if the app is killed during long first update.
+// It is compacted when an update completes, or when stale records outgrow the live ones.
+public class PhotoLibraryHashIndex {
+
+  private static final String INDEX_FILE_NAME = "photo-library-hashes.bin";
+  private static final int INDEX_FILE_VERSION = 2; // header followed by records, later record of an id replaces earlier ones
+  private static final int HEADER_SIZE = 4;
+  private static final int RECORD_SIZE = 3 * 8; // id, dateModified, hash
+  private static final int COMPACT_MIN_STALE_RECORDS = 1024;
+  private static final int FIRST_PUBLISH_AFTER = 64; // hashes, then interval doubles, so search tree is rebuilt O(log n) times per update
+
+  private final PhotoLibraryService service;
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      return new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+          runnable.run();
+        }
+      }, "PhotoLibraryHashIndex");
+    }
+  });
+
+  // Accessed only from executor thread
+  private Map<Long, Entry> entries = null;
+  private int logRecords = -1; // records in index file, -1 when it is missing or damaged, and is rewritten before appending
+
+  // Latest published hashes, searched by findSimilar without waiting for the update
+  private volatile Snapshot snapshot = null;
+
+  // Library version of the last queued update, -1 when there is none
+  private final AtomicLong requestedVersion = new AtomicLong(-1);
+
+  private volatile Context context = null; // while the library is observed
+  private volatile boolean enabled = false; // app uses findSimilar, so library changes are indexed in background
+
+  public PhotoLibraryHashIndex(PhotoLibraryService service) {
+    this.service = service;
+  }
+
+  // Index that exists from earlier launches is brought up to date right away. Apps that never call findSimilar do not hash the library.
+  public void start(Context context) {
+    this.context = context.getApplicationContext();
+    if (new File(context.getFilesDir(), INDEX_FILE_NAME).exists()) {
+      requestUpdate(this.context);
+    }
+  }
+
+  public void stop() {
+    context = null;
+  }
+
+  // Called after library version changed
+  public void onLibraryChanged() {
+    Context context = this.context;
+    if (enabled && context != null) {
+      requestUpdate(context);
+    }
+  }
+
+  // Drops hashes from memory, they are loaded again from app files by next update
+  public void clear() {
+    snapshot = null;
+    requestedVersion.set(-1);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        entries = null;
+      }
+    });
+  }
+
+  // photoId in either format, or null for all the library.
+  // For photoId, similar are [{id, distance}] of similar photos, closest first.
+  // For all the library, similar are groups of similar photos as arrays of ids, photos without similar ones are not returned.
+  // Returns {similar, isComplete, indexed, total}. Until isComplete, similar are found among indexed photos only.
+  // Videos and images that could not be decoded have no hash, so no similar photos are found for them.
+  public JSONObject findSimilar(Context context, String photoId, int threshold, boolean compactIds) throws IOException, JSONException {
+
+    Snapshot snapshot = this.snapshot;
+    long version = service.getLibraryVersion();
+    boolean isComplete = snapshot != null && snapshot.isComplete && snapshot.version == version;
+
+    if (!isComplete) {
+      requestUpdate(context.getApplicationContext());
+    }
+
+    JSONArray similar = new JSONArray();
+    if (snapshot != null) {
+      similar = photoId != null
+        ? findSimilarPhotos(context, snapshot, photoId, threshold, compactIds, isComplete)
+        : findSimilarGroups(snapshot, threshold, compactIds);
+    }
+
+    JSONObject result = new JSONObject();
+    result.put("similar", similar);
+    result.put("isComplete", isComplete);
+    result.put("indexed", snapshot != null ? snapshot.order.size() : 0);
+    result.put("total", snapshot != null ? snapshot.total : 0);
+    return result;
+
+  }
+
+  private JSONArray findSimilarPhotos(Context context, Snapshot snapshot, String photoId, int threshold, boolean compactIds, boolean isComplete)
+    throws IOException, JSONException {
+
+    long imageId = PhotoLibraryService.getImageId(photoId);
+    Long hash = snapshot.hashes.get(imageId);
+    if (hash == null) {
+      if (isComplete && !isInLibrary(context, imageId)) {
+        throw new FileNotFoundException("Photo with id " + photoId + " not found in the library");
+      }
+      return new JSONArray(); // Not hashed yet, or a video or image that can not be decoded
+    }
+
+    List<long[]> matches = new ArrayList<long[]>();
+    snapshot.tree.search(hash, threshold, matches);
+    Collections.sort(matches, new Comparator<long[]>() {
+      @Override
+      public int compare(long[] a, long[] b) {
+        return a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1);
+      }
+    });
+
+    JSONArray result = new JSONArray();
+    for (long[] match : matches) {
+      if (match[0] == imageId) {
+        continue;
+      }
+      JSONObject item = new JSONObject();
+      item.put("id", snapshot.photoId(match[0], compactIds));
+      item.put("distance", match[1]);
+      result.put(item);
+    }
+    return result;
+
+  }
+
+  private boolean isInLibrary(Context context, long id) throws JSONException {
+    JSONObject columns = new JSONObject() {{
+      put("id", MediaStore.Files.FileColumns._ID);
+    }};
+    Cursor cursor = service.openContentProviderCursor(context, PhotoLibraryService.FILES_CONTENT_URI, columns,
+      PhotoLibraryService.restrictToMediaTypes(MediaStore.Files.FileColumns._ID + " = ?", true, true), new String[] { Long.toString(id) });
+    try {
+      return cursor.moveToFirst();
+    } finally {
+      cursor.close();
+    }
+  }
+
+  // Groups are connected components of "within threshold" relation, found with union-find
+  private static JSONArray findSimilarGroups(Snapshot snapshot, int threshold, boolean compactIds) {
+
+    Map<Long, Long> parents = new HashMap<Long, Long>();
+    List<long[]> matches = new ArrayList<long[]>();
+    for (Long id : snapshot.order) {
+      matches.clear();
+      snapshot.tree.search(snapshot.hashes.get(id), threshold, matches);
+      for (long[] match : matches) {
+        union(parents, id, match[0]);
+      }
+    }
+
+    Map<Long, JSONArray> groups = new HashMap<Long, JSONArray>();
+    JSONArray result = new JSONArray();
+    for (Long id : snapshot.order) {
+      Long root = find(parents, id);
+      JSONArray group = groups.get(root);
+      if (group == null) {
+        group = new JSONArray();
+        groups.put(root, group);
+      }
+      group.put(snapshot.photoId(id, compactIds));
+    }
+    for (Long id : snapshot.order) {
+      JSONArray group = groups.remove(find(parents, id));
+      if (group != null && group.length() > 1) {
+        result.put(group);
+      }
+    }
+    return result;
+
+  }
+
+  // Queues update of the index to current library version. Updates run on single background thread, so concurrent callers do not hash twice.
+  private void requestUpdate(final Context context) {
+
+    enabled = true;
+
+    final long version = service.getLibraryVersion();
+    if (requestedVersion.getAndSet(version) == version) {
+      return; // Update of this version is already queued, running or done
+    }
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (requestedVersion.get() != version) {
+          return; // Library changed again, and newer update is queued
+        }
+        try {
+          updateIndex(context, version);
+        } catch (Exception e) {
+          e.printStackTrace(); // E.g. permission is not granted yet
+          requestedVersion.compareAndSet(version, -1); // so next findSimilar tries again
+        }
+      }
+    });
+
+  }
+
+  private void updateIndex(Context context, long version) throws JSONException {
+
+    File indexFile = new File(context.getFilesDir(), INDEX_FILE_NAME);
+
+    if (entries == null) {
+      entries = new HashMap<Long, Entry>();
+      logRecords = load(indexFile, entries);
+    }
+
+    JSONObject columns = new JSONObject() {{
+      put("id", MediaStore.Images.Media._ID);
+      put("dateModified", MediaStore.MediaColumns.DATE_MODIFIED);
+      put("path", MediaStore.MediaColumns.DATA);
+    }};
+
+    List<Row> rows = new ArrayList<Row>();
+
+    Cursor cursor = service.openContentProviderCursor(context, MediaStore.Images.Media.EXTERNAL_CONTENT_URI, columns, null, null);
+    try {
+
+      int idColumn = cursor.getColumnIndex(MediaStore.Images.Media._ID);
+      int dateModifiedColumn = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+      int pathColumn = cursor.getColumnIndex(MediaStore.MediaColumns.DATA);
+
+      while (cursor.moveToNext()) {
+        rows.add(new Row(cursor.getLong(idColumn), cursor.getLong(dateModifiedColumn), cursor.getString(pathColumn)));
+      }
+
+    } finally {
+      cursor.close();
+    }
+
+    List<Row> staleRows = new ArrayList<Row>();
+    Set<Long> ids = new HashSet<Long>();
+    for (Row row : rows) {
+      ids.add(row.id);
+      if (!isHashed(row)) {
+        staleRows.add(row);
+      }
+    }
+
+    // Removed images, their records stay in the log until it is compacted
+    entries.keySet().retainAll(ids);
+
+    // Photos hashed before are searchable right away, before new ones are hashed
+    publish(rows, version, staleRows.isEmpty());
+
+    int hashed = 0;
+    int nextPublish = FIRST_PUBLISH_AFTER;
+    boolean interrupted = false;
+
+    DataOutputStream log = staleRows.isEmpty() ? null : openLog(indexFile);
+    try {
+
+      for (Row row : staleRows) {
+
+        if (requestedVersion.get() != version) {
+          interrupted = true; // Library changed, newer update continues with the rest
+          break;
+        }
+
+        Entry entry;
+        try {
+          entry = new Entry(row.id, row.dateModified, service.computeDifferenceHash(row.path));
+        } catch (IOException e) {
+          continue; // Not an image that can be decoded, it will be tried again on next update
+        }
+        entries.put(row.id, entry);
+
+        if (log != null) {
+          try {
+            writeEntry(log, entry);
+            log.flush();
+            logRecords += 1;
+          } catch (IOException e) {
+            e.printStackTrace();
+            closeLog(log);
+            log = null;
+            logRecords = -1; // Could end with partial record, so it is rewritten
+          }
+        }
+
+        hashed += 1;
+        if (hashed == nextPublish) {
+          publish(rows, version, false);
+          nextPublish *= 2;
+        }
+
+      }
+
+    } finally {
+      closeLog(log);
+    }
+
+    boolean isComplete = !interrupted;
+
+    // Log has records of removed images and older hashes of changed ones
+    if ((isComplete && logRecords != entries.size())
+      || logRecords - entries.size() > Math.max(COMPACT_MIN_STALE_RECORDS, entries.size())) {
+      compact(indexFile);
+    }
+
+    publish(rows, version, isComplete);
+
+  }
+
+  private boolean isHashed(Row row) {
+    Entry entry = entries.get(row.id);
+    return entry != null && entry.dateModified == row.dateModified;
+  }
+
+  private void publish(List<Row> rows, long version, boolean isComplete) {
+    Snapshot snapshot = new Snapshot(version, isComplete, rows.size());
+    for (Row row : rows) {
+      if (isHashed(row)) {
+        snapshot.add(row.id, entries.get(row.id).hash, row.path);
+      }
+    }
+    this.snapshot = snapshot;
+  }
+
+  // Reads records of index file into entries. Returns number of records, or -1 when the file should be rewritten before appending:
+  // it is missing, of other version, damaged, or ends with partial record of app killed while appending.
+  private static int load(File indexFile, Map<Long, Entry> entries) {
+
+    if (!indexFile.exists()) {
+      return -1;
+    }
+
+    long length = indexFile.length();
+    long records = (length - HEADER_SIZE) / RECORD_SIZE;
+    boolean isPartial = length < HEADER_SIZE || (length - HEADER_SIZE) % RECORD_SIZE != 0;
+
+    try {
+      DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+      try {
+        if (length < HEADER_SIZE || is.readInt() != INDEX_FILE_VERSION) {
+          return -1; // Will be rebuilt
+        }
+        for (long i = 0; i < records; i++) {
+          Entry entry = new Entry(is.readLong(), is.readLong(), is.readLong());
+          entries.put(entry.id, entry);
+        }
+      } finally {
+        is.close();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      entries.clear(); // Corrupted, will be rebuilt
+      return -1;
+    }
+
+    return isPartial ? -1 : (int) records;
+
+  }
+
+  // Opens index file for appending, after rewriting it if needed. Returns null if it can not be written, hashes are kept in memory then.
+  private DataOutputStream openLog(File indexFile) {
+
+    if (logRecords < 0) {
+      compact(indexFile);
+      if (logRecords < 0) {
+        return null;
+      }
+    }
+
+    try {
+      return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+
+  }
+
+  private static void closeLog(DataOutputStream log) {
+    if (log == null) {
+      return;
+    }
+    try {
+      log.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  // Rewrites index file with live entries only. Written to temporary file and renamed, so killed app never leaves partial index.
+  private void compact(File indexFile) {
+
+    File tempFile = new File(indexFile.getPath() + ".tmp");
+
+    try {
+      DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      try {
+        os.writeInt(INDEX_FILE_VERSION);
+        for (Entry entry : entries.values()) {
+          writeEntry(os, entry);
+        }
+      } finally {
+        os.close();
+      }
+      if (!tempFile.renameTo(indexFile)) {
+        throw new IOException("Could not write " + indexFile);
+      }
+      logRecords = entries.size();
+    } catch (IOException e) {
+      e.printStackTrace();
+      tempFile.delete();
+      logRecords = -1;
+    }
+
+  }
+
+  private static void writeEntry(DataOutputStream os, Entry entry) throws IOException {
+    os.writeLong(entry.id);
+    os.writeLong(entry.dateModified);
+    os.writeLong(entry.hash);
+  }
+
+  private static Long find(Map<Long, Long> parents, Long id) {
+    Long root = id;
+    Long parent;
+    while ((parent = parents.get(root)) != null) {
+      root = parent;
+    }
+    // Path compression
+    while (!id.equals(root)) {
+      Long next = parents.get(id);
+      parents.put(id, root);
+      id = next;
+    }
+    return root;
+  }
+
+  private static void union(Map<Long, Long> parents, Long a, Long b) {
+    Long rootA = find(parents, a);
+    Long rootB = find(parents, b);
+    if (!rootA.equals(rootB)) {
+      parents.put(rootB, rootA);
+    }
+  }
+
+  private static class Entry {
+
+    final long id;
+    final long dateModified;
+    final long hash;
+
+    Entry(long id, long dateModified, long hash) {
+      this.id = id;
+      this.dateModified = dateModified;
+      this.hash = hash;
+    }
+
+  }
+
+  private static class Row {
+
+    final long id;
+    final long dateModified;
+    final String path;
+
+    Row(long id, long dateModified, String path) {
+      this.id = id;
+      this.dateModified = dateModified;
+      this.path = path;
+    }
+
+  }
+
+  // Hashes of the library at the moment of update, in library order
+  static class Snapshot {
+
+    final long version; // library version the update started from
+    final boolean isComplete; // all the images were hashed, except ones that could not be decoded
+    final int total; // images in the library
+    final BKTree tree = new BKTree();
+    final Map<Long, Long> hashes = new HashMap<Long, Long>();
+    final Map<Long, String> paths = new HashMap<Long, String>();
+    final List<Long> order = new ArrayList<Long>();
+
+    Snapshot(long version, boolean isComplete, int total) {
+      this.version = version;
+      this.isComplete = isComplete;
+      this.total = total;
+    }
+
+    void add(long id, long hash, String path) {
+      tree.add(hash, id);
+      hashes.put(id, hash);
+      paths.put(id, path);
+      order.add(id);
+    }
+
+    String photoId(long id, boolean compactIds) {
+      return compactIds ? Long.toString(id) : id + ";" + paths.get(id);
+    }
+
+  }
+
+  // BK-tree over Hamming distance. Children of a node are at distinct distances from it, so by triangle inequality
+  // search visits only children at distance d-threshold..d+threshold from the node.
+  static class BKTree {
+
+    private Node root = null;
+
+    void add(long hash, long id) {
+
+      if (root == null) {
+        root = new Node(hash, id, 0);
+        return;
+      }
+
+      Node node = root;
+      while (true) {
+        int distance = Long.bitCount(node.hash ^ hash);
+        if (distance == 0) {
+          node.addId(id);
+          return;
+        }
+        Node child = node.child(distance);
+        if (child == null) {
+          node.addChild(new Node(hash, id, distance));
+          return;
+        }
+        node = child;
+      }
+
+    }
+
+    // Adds {id, distance} of every image within threshold
+    void search(long hash, int threshold, List<long[]> result) {
+
+      if (root == null) {
+        return;
+      }
+
+      ArrayDeque<Node> nodes = new ArrayDeque<Node>();
+      nodes.push(root);
+
+      while (!nodes.isEmpty()) {
+        Node node = nodes.pop();
+        int distance = Long.bitCount(node.hash ^ hash);
+        if (distance <= threshold) {
+          for (int i = 0; i < node.idsCount; i++) {
+            result.add(new long[] { node.ids[i], distance });
+          }
+        }
+        for (Node child = node.firstChild; child != null; child = child.nextSibling) {
+          if (Math.abs(child.distance - distance) <= threshold) {
+            nodes.push(child);
+          }
+        }
+      }
+
+    }
+
+    // Children are kept in linked list, as array of 65 distances per node would take most of the memory
+    private static class Node {
+
+      final long hash;
+      final int distance; // from parent
+      long[] ids;
+      int idsCount;
+      Node firstChild;
+      Node nextSibling;
+
+      Node(long hash, long id, int distance) {
+        this.hash = hash;
+        this.distance = distance;
+        this.ids = new long[] { id };
+        this.idsCount = 1;
+      }
+
+      void addId(long id) {
+        if (idsCount == ids.length) {
+          long[] newIds = new long[ids.length * 2];
+          System.arraycopy(ids, 0, newIds, 0, idsCount);
+          ids = newIds;
+        }
+        ids[idsCount++] = id;
+      }
+
+      Node child(int distance) {
+        for (Node child = firstChild; child != null; child = child.nextSibling) {
+          if (child.distance == distance) {
+            return child;
+          }
+        }
+        return null;
+      }
+
+      void addChild(Node child) {
+        child.nextSibling = firstChild;
+        firstChild = child;
+      }
+
+    }
+
+  }
+
+}
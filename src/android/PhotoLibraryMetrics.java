@@ -0,0 +1,245 @@
+package com.terikon.cordova.photolibrary;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Performance counters of the plugin, returned to javascript by getMetrics.
+// Recording costs a few atomic operations and no allocations, so it is always on.
+public class PhotoLibraryMetrics {
+
+  // Stages of work inside the plugin
+  public static final String STAGE_QUERY = "query"; // MediaStore query, until cursor is returned
+  public static final String STAGE_EXIF = "exif"; // EXIF orientation read
+  public static final String STAGE_DECODE = "decode"; // Decoding of image file to bitmap
+  public static final String STAGE_TRANSFORM = "transform"; // Rotation and scaling of bitmap
+  public static final String STAGE_ENCODE = "encode"; // Compression of bitmap to jpeg, webp or png
+  public static final String STAGE_BASE64 = "base64"; // Encoding of picture data for the bridge
+  public static final String STAGE_WRITE = "write"; // Writing of saved file
+  public static final String STAGE_SCAN = "scan"; // Media scan of saved files
+  public static final String STAGE_HASH = "hash"; // Perceptual hash of image for findSimilar, including its decode
+  public static final String STAGE_VIDEO_FRAME = "videoFrame"; // Extraction of video frame for thumbnails, including its scaling
+  public static final String STAGE_FIRST_CHUNK = "getLibrary.firstChunk"; // From getLibrary start to its first chunk
+
+  public static final String COUNTER_THUMBNAIL_CACHE_HITS = "thumbnailCache.hits";
+  public static final String COUNTER_THUMBNAIL_CACHE_MISSES = "thumbnailCache.misses";
+  public static final String COUNTER_THUMBNAIL_COALESCED = "thumbnailCache.coalesced";
+  public static final String COUNTER_VIDEO_FRAME_CACHE_HITS = "videoFrameCache.hits";
+  public static final String COUNTER_VIDEO_FRAME_CACHE_MISSES = "videoFrameCache.misses";
+  public static final String COUNTER_IMAGE_PATH_CACHE_HITS = "imagePathCache.hits";
+  public static final String COUNTER_IMAGE_PATH_CACHE_MISSES = "imagePathCache.misses";
+  public static final String COUNTER_DOWNGRADED_DECODES = "memory.downgradedDecodes";
+  public static final String COUNTER_MEMORY_TRIMS = "memory.trims";
+
+  public final AtomicInteger pendingActions = new AtomicInteger(); // Waiting for thread of cordova thread pool
+  public final AtomicInteger activeActions = new AtomicInteger();
+  public final AtomicInteger inFlightDecodes = new AtomicInteger();
+  public final AtomicInteger decodesWaitingForMemory = new AtomicInteger();
+  public final AtomicLong decodeBudgetBytes = new AtomicLong();
+  public final AtomicLong decodeBytesInUse = new AtomicLong();
+
+  private final ConcurrentHashMap<String, Histogram> actions = new ConcurrentHashMap<String, Histogram>();
+  private final ConcurrentHashMap<String, Histogram> stages = new ConcurrentHashMap<String, Histogram>();
+  private final ConcurrentHashMap<String, AtomicLong> bridgeBytes = new ConcurrentHashMap<String, AtomicLong>();
+  private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+  private volatile long resetTime = SystemClock.elapsedRealtime();
+
+  // Returns start time for recordStage and recordAction
+  public static long start() {
+    return System.nanoTime();
+  }
+
+  public void recordStage(String stage, long startNanos) {
+    getOrCreate(stages, stage).record(System.nanoTime() - startNanos);
+  }
+
+  public void recordAction(String action, long startNanos) {
+    getOrCreate(actions, action).record(System.nanoTime() - startNanos);
+  }
+
+  // Size of result sent to webview. Messages are mostly ascii json, so their length is used as number of bytes.
+  public void addBridgeBytes(String action, long bytes) {
+    AtomicLong counter = bridgeBytes.get(action);
+    if (counter == null) {
+      AtomicLong newCounter = new AtomicLong();
+      counter = bridgeBytes.putIfAbsent(action, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    counter.addAndGet(bytes);
+  }
+
+  public void increment(String counterName) {
+    AtomicLong counter = counters.get(counterName);
+    if (counter == null) {
+      AtomicLong newCounter = new AtomicLong();
+      counter = counters.putIfAbsent(counterName, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    counter.incrementAndGet();
+  }
+
+  public long getCounter(String counterName) {
+    AtomicLong counter = counters.get(counterName);
+    return counter != null ? counter.get() : 0;
+  }
+
+  // Clears latencies and counters. Gauges, like activeActions, describe current state, so they are kept.
+  public void reset() {
+    actions.clear();
+    stages.clear();
+    bridgeBytes.clear();
+    counters.clear();
+    resetTime = SystemClock.elapsedRealtime();
+  }
+
+  public JSONObject toJSON() throws JSONException {
+
+    JSONObject result = new JSONObject();
+    result.put("periodMs", SystemClock.elapsedRealtime() - resetTime);
+    result.put("actions", histogramsToJSON(actions));
+    result.put("stages", histogramsToJSON(stages));
+
+    JSONObject bridgeBytesJSON = new JSONObject();
+    long totalBridgeBytes = 0;
+    for (Map.Entry<String, AtomicLong> entry : bridgeBytes.entrySet()) {
+      bridgeBytesJSON.put(entry.getKey(), entry.getValue().get());
+      totalBridgeBytes += entry.getValue().get();
+    }
+    bridgeBytesJSON.put("total", totalBridgeBytes);
+    result.put("bridgeBytes", bridgeBytesJSON);
+
+    long hits = getCounter(COUNTER_THUMBNAIL_CACHE_HITS);
+    long misses = getCounter(COUNTER_THUMBNAIL_CACHE_MISSES);
+    long coalesced = getCounter(COUNTER_THUMBNAIL_COALESCED);
+    JSONObject thumbnailCacheJSON = new JSONObject();
+    thumbnailCacheJSON.put("hits", hits);
+    thumbnailCacheJSON.put("misses", misses);
+    thumbnailCacheJSON.put("coalesced", coalesced);
+    // Coalesced requests did not decode, so they count as hits
+    long requests = hits + misses;
+    thumbnailCacheJSON.put("hitRate", requests > 0 ? (double) (hits + coalesced) / requests : 0);
+
+    long imagePathHits = getCounter(COUNTER_IMAGE_PATH_CACHE_HITS);
+    long imagePathMisses = getCounter(COUNTER_IMAGE_PATH_CACHE_MISSES);
+    JSONObject imagePathCacheJSON = new JSONObject();
+    imagePathCacheJSON.put("hits", imagePathHits);
+    imagePathCacheJSON.put("misses", imagePathMisses);
+    imagePathCacheJSON.put("hitRate", imagePathHits + imagePathMisses > 0 ? (double) imagePathHits / (imagePathHits + imagePathMisses) : 0);
+
+    long videoFrameHits = getCounter(COUNTER_VIDEO_FRAME_CACHE_HITS);
+    long videoFrameMisses = getCounter(COUNTER_VIDEO_FRAME_CACHE_MISSES);
+    JSONObject videoFrameCacheJSON = new JSONObject();
+    videoFrameCacheJSON.put("hits", videoFrameHits);
+    videoFrameCacheJSON.put("misses", videoFrameMisses);
+    videoFrameCacheJSON.put("hitRate", videoFrameHits + videoFrameMisses > 0 ? (double) videoFrameHits / (videoFrameHits + videoFrameMisses) : 0);
+
+    JSONObject cachesJSON = new JSONObject();
+    cachesJSON.put("thumbnail", thumbnailCacheJSON);
+    cachesJSON.put("imagePath", imagePathCacheJSON);
+    cachesJSON.put("videoFrame", videoFrameCacheJSON);
+    result.put("caches", cachesJSON);
+
+    JSONObject queuesJSON = new JSONObject();
+    queuesJSON.put("pendingActions", pendingActions.get());
+    queuesJSON.put("activeActions", activeActions.get());
+    queuesJSON.put("inFlightDecodes", inFlightDecodes.get());
+    queuesJSON.put("decodesWaitingForMemory", decodesWaitingForMemory.get());
+    result.put("queues", queuesJSON);
+
+    JSONObject memoryJSON = new JSONObject();
+    memoryJSON.put("decodeBudgetBytes", decodeBudgetBytes.get());
+    memoryJSON.put("decodeBytesInUse", decodeBytesInUse.get());
+    memoryJSON.put("downgradedDecodes", getCounter(COUNTER_DOWNGRADED_DECODES));
+    memoryJSON.put("trims", getCounter(COUNTER_MEMORY_TRIMS));
+    result.put("memory", memoryJSON);
+
+    return result;
+
+  }
+
+  private static JSONObject histogramsToJSON(Map<String, Histogram> histograms) throws JSONException {
+    JSONObject result = new JSONObject();
+    for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().toJSON());
+    }
+    return result;
+  }
+
+  private static Histogram getOrCreate(ConcurrentHashMap<String, Histogram> histograms, String name) {
+    Histogram histogram = histograms.get(name);
+    if (histogram == null) {
+      Histogram newHistogram = new Histogram();
+      histogram = histograms.putIfAbsent(name, newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+      }
+    }
+    return histogram;
+  }
+
+  // Latency histogram with power of 2 buckets of microseconds, so percentiles are reported with at most 2x error.
+  // Bucket i holds latencies below 2^i microseconds, last bucket holds everything above.
+  static class Histogram {
+
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long nanos) {
+      long micros = nanos / 1000;
+      int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+      buckets.incrementAndGet(bucket);
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      long max = maxNanos.get();
+      while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+        max = maxNanos.get();
+      }
+    }
+
+    JSONObject toJSON() throws JSONException {
+      long count = this.count.get();
+      JSONObject result = new JSONObject();
+      result.put("count", count);
+      result.put("meanMs", count > 0 ? totalNanos.get() / 1e6 / count : 0);
+      result.put("maxMs", maxNanos.get() / 1e6);
+      result.put("p50Ms", percentileMs(count, 0.5));
+      result.put("p90Ms", percentileMs(count, 0.9));
+      result.put("p99Ms", percentileMs(count, 0.99));
+      return result;
+    }
+
+    // Upper bound of the bucket where percentile falls
+    private double percentileMs(long count, double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(count * percentile);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS - 1; i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          return Math.min((1L << i) / 1e3, maxNanos.get() / 1e6);
+        }
+      }
+      return maxNanos.get() / 1e6;
+    }
+
+  }
+
+}
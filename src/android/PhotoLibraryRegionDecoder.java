@@ -0,0 +1,163 @@
+package com.terikon.cordova.photolibrary;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+import android.util.LruCache;
+
+import java.io.IOException;
+
+// Decodes regions of photos for zoom viewers, so memory is proportional to the viewport and not to the photo.
+// BitmapRegionDecoder parses the file once, so decoders of recently viewed photos are kept open for their next tiles.
+public class PhotoLibraryRegionDecoder {
+
+  private static final int CACHE_SIZE = 3; // decoders, for current photo and its neighbours in the viewer
+
+  private final LruCache<String, Entry> cache = new LruCache<String, Entry>(CACHE_SIZE) {
+    @Override
+    protected void entryRemoved(boolean evicted, String key, Entry oldValue, Entry newValue) {
+      oldValue.close();
+    }
+  };
+
+  // Opens decoder of imagePath or takes it from the cache. Caller must release it.
+  public Entry acquire(String imagePath, int orientation) throws IOException {
+
+    String key = imagePath + ";" + orientation; // photo rotated by editing its EXIF gets new decoder
+
+    synchronized (cache) {
+      Entry entry = cache.get(key);
+      if (entry != null && entry.retain()) {
+        return entry;
+      }
+    }
+
+    // Opened outside of the lock, as it parses the file. Two threads may open same photo, and one of the decoders is closed then.
+    BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(imagePath, false);
+    if (decoder == null) {
+      throw new IOException("Could not decode regions of " + imagePath);
+    }
+
+    Entry entry = new Entry(decoder, orientation);
+    entry.retain();
+    synchronized (cache) {
+      cache.put(key, entry);
+    }
+    return entry;
+
+  }
+
+  public void clear() {
+    synchronized (cache) {
+      cache.evictAll();
+    }
+  }
+
+  // Open decoder. It is closed when it is both removed from the cache and released by all its users.
+  public static class Entry {
+
+    private final BitmapRegionDecoder decoder;
+    private final int orientation;
+
+    private int users = 0;
+    private boolean removed = false;
+
+    Entry(BitmapRegionDecoder decoder, int orientation) {
+      this.decoder = decoder;
+      this.orientation = orientation;
+    }
+
+    // Size of the photo as shown, with EXIF orientation applied
+    public int getWidth() {
+      return PhotoLibraryService.isOrientationSwapsDimensions(orientation) ? decoder.getHeight() : decoder.getWidth();
+    }
+
+    public int getHeight() {
+      return PhotoLibraryService.isOrientationSwapsDimensions(orientation) ? decoder.getWidth() : decoder.getHeight();
+    }
+
+    public int getOrientation() {
+      return orientation;
+    }
+
+    // Maps rect of the photo as shown to rect of the file, clipped to the photo
+    public Rect toFileRect(Rect rect) {
+
+      int w = decoder.getWidth();
+      int h = decoder.getHeight();
+      int l = rect.left, t = rect.top, r = rect.right, b = rect.bottom;
+
+      Rect result;
+      switch (orientation) {
+        case ExifInterface.ORIENTATION_FLIP_HORIZONTAL: // 2
+          result = new Rect(w - r, t, w - l, b);
+          break;
+        case ExifInterface.ORIENTATION_ROTATE_180: // 3
+          result = new Rect(w - r, h - b, w - l, h - t);
+          break;
+        case ExifInterface.ORIENTATION_FLIP_VERTICAL: // 4
+          result = new Rect(l, h - b, r, h - t);
+          break;
+        case ExifInterface.ORIENTATION_TRANSPOSE: // 5
+          result = new Rect(t, l, b, r);
+          break;
+        case ExifInterface.ORIENTATION_ROTATE_90: // 6
+          result = new Rect(t, h - r, b, h - l);
+          break;
+        case ExifInterface.ORIENTATION_TRANSVERSE: // 7
+          result = new Rect(w - b, h - r, w - t, h - l);
+          break;
+        case ExifInterface.ORIENTATION_ROTATE_270: // 8
+          result = new Rect(w - b, l, w - t, r);
+          break;
+        default:
+          result = new Rect(l, t, r, b);
+      }
+
+      if (!result.intersect(0, 0, w, h)) {
+        result.setEmpty();
+      }
+      return result;
+
+    }
+
+    // Decodes rect of the file, as returned by toFileRect. Result is not rotated.
+    public Bitmap decodeRegion(Rect fileRect, BitmapFactory.Options options) {
+      return decoder.decodeRegion(fileRect, options);
+    }
+
+    public void release() {
+      boolean close;
+      synchronized (this) {
+        users -= 1;
+        close = removed && users == 0;
+      }
+      if (close) {
+        decoder.recycle();
+      }
+    }
+
+    private synchronized boolean retain() {
+      if (removed) {
+        return false;
+      }
+      users += 1;
+      return true;
+    }
+
+    private void close() {
+      boolean close;
+      synchronized (this) {
+        removed = true;
+        close = users == 0;
+      }
+      if (close) {
+        decoder.recycle();
+      }
+    }
+
+  }
+
+}
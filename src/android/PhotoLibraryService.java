@@ -1,58 +1,109 @@
 package com.terikon.cordova.photolibrary;
 
+import android.content.ComponentCallbacks2;
+import android.content.ContentUris;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.media.ExifInterface;
+import android.media.MediaMetadataRetriever;
 import android.media.MediaScannerConnection;
 import android.media.ThumbnailUtils;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Environment;
 import android.os.SystemClock;
 import android.provider.MediaStore;
-import android.util.Base64;
+import android.util.LruCache;
 
 import org.apache.cordova.CordovaInterface;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.net.URL;
 import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PhotoLibraryService {
 
-  // TODO: implement cache
-  //int cacheSize = 4 * 1024 * 1024; // 4MB
-  //private LruCache<String, byte[]> imageCache = new LruCache<String, byte[]>(cacheSize);
+  // Caches encoded thumbnails, key includes size, quality and output format
+  private static final int THUMBNAIL_CACHE_SIZE = 4 * 1024 * 1024; // 4MB
+  private final LruCache<String, PictureData> thumbnailCache = new LruCache<String, PictureData>(THUMBNAIL_CACHE_SIZE) {
+    @Override
+    protected int sizeOf(String key, PictureData value) {
+      return value.bytes.length;
+    }
+  };
+
+  // Caches frames extracted from videos, so thumbnails of other sizes, qualities and formats do not extract them again
+  private static final int VIDEO_FRAME_CACHE_SIZE = 8 * 1024 * 1024; // 8MB
+  private static final int VIDEO_FRAME_SIZE = 512; // longer side of cached frame, as MINI_KIND thumbnails of MediaStore
+  private final LruCache<Integer, Bitmap> videoFrameCache = new LruCache<Integer, Bitmap>(VIDEO_FRAME_CACHE_SIZE) {
+    @Override
+    protected int sizeOf(Integer key, Bitmap value) {
+      return value.getByteCount();
+    }
+  };
 
   protected PhotoLibraryService() {
-    dateFormatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-    dateFormatter.setTimeZone(TimeZone.getTimeZone("UTC"));
   }
 
+  public static final String MEDIA_TYPE_IMAGE = "image";
+  public static final String MEDIA_TYPE_VIDEO = "video";
+
+  // Images and videos of external storage, their ids are shared with MediaStore.Images and MediaStore.Video
+  static final Uri FILES_CONTENT_URI = MediaStore.Files.getContentUri("external");
+
+  // creationDate of library items, milliseconds since epoch or 0 when unknown. Library is sorted by it, most recent first.
+  static final String CREATION_DATE_COLUMN = MediaStore.Images.ImageColumns.DATE_TAKEN;
+
   public static final String PERMISSION_ERROR = "Permission Denial: This application is not allowed to access Photo data.";
+  public static final String CANCELLED_ERROR = "Cancelled";
 
   public static PhotoLibraryService getInstance() {
     if (instance == null) {
@@ -65,10 +116,74 @@ public class PhotoLibraryService {
     return instance;
   }
 
-  public void getLibrary(Context context, PhotoLibraryGetLibraryOptions options, ChunkResultRunnable completion) throws JSONException {
+  // Registers session of getLibrary or progressive getPhoto, so it can be cancelled before its work even started.
+  public void beginSession(String sessionId) {
+    if (sessionId != null) {
+      sessions.put(sessionId, new AtomicBoolean(false));
+    }
+  }
+
+  public void endSession(String sessionId) {
+    if (sessionId != null) {
+      sessions.remove(sessionId);
+    }
+  }
+
+  // Returns false if session is unknown, e.g. it already completed.
+  public boolean cancelSession(String sessionId) {
+    AtomicBoolean cancelled = sessions.get(sessionId);
+    if (cancelled == null) {
+      return false;
+    }
+    cancelled.set(true);
+    return true;
+  }
+
+  // Cancellation flag of the session, or null when there is no session
+  public AtomicBoolean getSession(String sessionId) {
+    return sessionId != null ? sessions.get(sessionId) : null;
+  }
+
+  public void getLibrary(Context context, PhotoLibraryGetLibraryOptions options, final ChunkResultRunnable completion) throws JSONException {
+
+    AtomicBoolean cancelled = getSession(options.sessionId);
+
+    final long start = PhotoLibraryMetrics.start();
+    ChunkResultRunnable measuredCompletion = new ChunkResultRunnable() {
+      @Override
+      public void run(ArrayList<JSONObject> chunk, int chunkNum, boolean isLastChunk, boolean isCancelled) {
+        if (chunkNum == 0) {
+          metrics.recordStage(PhotoLibraryMetrics.STAGE_FIRST_CHUNK, start);
+        }
+        completion.run(chunk, chunkNum, isLastChunk, isCancelled);
+      }
+    };
 
     String whereClause = "";
-    queryLibrary(context, options.itemsInChunk, options.chunkTimeSec, options.includeAlbumData, whereClause, completion);
+    queryLibrary(context, options.itemsInChunk, options.chunkTimeSec, options.includeImages, options.includeVideos, options.includeAlbumData,
+      options.compactIds, whereClause, null, cancelled, measuredCompletion);
+
+  }
+
+  // Returns library items in order of photoIds, null for the ones not found in the library.
+  // Costs queries proportional to number of photoIds, and not to size of the library.
+  // photoIds can be in either format, returned items have compact ids if compactIds is set.
+  public JSONArray getLibraryItems(Context context, List<String> photoIds, boolean includeAlbumData, boolean compactIds) throws JSONException {
+
+    ArrayList<Long> ids = new ArrayList<Long>(photoIds.size());
+    for (String photoId : photoIds) {
+      ids.add((long) getImageId(photoId));
+    }
+
+    Map<Long, JSONObject> itemsById = queryLibraryItemsByIds(context, ids, includeAlbumData, compactIds);
+
+    JSONArray result = new JSONArray();
+    for (Long id : ids) {
+      JSONObject item = itemsById.get(id);
+      result.put(item != null ? item : JSONObject.NULL);
+    }
+
+    return result;
 
   }
 
@@ -87,44 +202,192 @@ public class PhotoLibraryService {
 
   }
 
-  public PictureData getThumbnail(Context context, String photoId, int thumbnailWidth, int thumbnailHeight, double quality) throws IOException {
+  public static final String FORMAT_JPEG = "jpeg";
+  public static final String FORMAT_WEBP = "webp";
+  public static final String FORMAT_PNG = "png";
 
-    Bitmap bitmap = null;
+  public static boolean isSupportedOutputFormat(String outputFormat) {
+    return FORMAT_JPEG.equals(outputFormat) || FORMAT_WEBP.equals(outputFormat) || FORMAT_PNG.equals(outputFormat);
+  }
 
-    String imageURL = getImageURL(photoId);
-    File imageFile = new File(imageURL);
+  // outputFormat is one of FORMAT_JPEG, FORMAT_WEBP or FORMAT_PNG.
+  // If targetByteSize > 0, quality is lowered until encoded thumbnail fits into targetByteSize. It has no effect on png.
+  public PictureData getThumbnail(final Context context, final String photoId, final int thumbnailWidth, final int thumbnailHeight, final double quality,
+    final String outputFormat, final int targetByteSize) throws IOException {
+
+    // Keyed by image id, so both photoId formats share cached thumbnails
+    final String cacheKey = getImageId(photoId) + "|" + thumbnailWidth + "x" + thumbnailHeight + "|" + quality + "|" + outputFormat + "|" + targetByteSize;
+    PictureData cached = thumbnailCache.get(cacheKey);
+    if (cached != null) {
+      metrics.increment(PhotoLibraryMetrics.COUNTER_THUMBNAIL_CACHE_HITS);
+      return cached;
+    }
+    metrics.increment(PhotoLibraryMetrics.COUNTER_THUMBNAIL_CACHE_MISSES);
+
+    // Identical requests that arrive while thumbnail is being created wait for it, instead of decoding it again
+    FutureTask<PictureData> task = new FutureTask<PictureData>(new Callable<PictureData>() {
+      @Override
+      public PictureData call() throws Exception {
+        metrics.inFlightDecodes.incrementAndGet();
+        try {
+          PictureData thumbnail = createThumbnail(context, photoId, thumbnailWidth, thumbnailHeight, quality, outputFormat, targetByteSize);
+          if (thumbnail != null) {
+            thumbnailCache.put(cacheKey, thumbnail);
+          }
+          return thumbnail;
+        } finally {
+          metrics.inFlightDecodes.decrementAndGet();
+        }
+      }
+    });
 
-    // TODO: maybe it never worth using MediaStore.Images.Thumbnails.getThumbnail, as it returns sizes less than 512x384?
-    if (thumbnailWidth == 512 && thumbnailHeight == 384) { // In such case, thumbnail will be cached by MediaStore
-      int imageId = getImageId(photoId);
-      // For some reason and against documentation, MINI_KIND image can be returned in size different from 512x384, so the image will be scaled later if needed
-      bitmap = MediaStore.Images.Thumbnails.getThumbnail(
-        context.getContentResolver(),
-        imageId ,
-        MediaStore.Images.Thumbnails.MINI_KIND,
-        (BitmapFactory.Options) null);
+    FutureTask<PictureData> inFlightTask = inFlightThumbnails.putIfAbsent(cacheKey, task);
+    if (inFlightTask == null) {
+      inFlightTask = task;
+      try {
+        task.run();
+      } finally {
+        inFlightThumbnails.remove(cacheKey, task);
+      }
+    } else {
+      metrics.increment(PhotoLibraryMetrics.COUNTER_THUMBNAIL_COALESCED);
     }
 
-    if (bitmap == null) { // No free caching here
-      Uri imageUri = Uri.fromFile(imageFile);
-      BitmapFactory.Options options = new BitmapFactory.Options();
+    return getResult(inFlightTask, "thumbnail");
 
-      options.inJustDecodeBounds = true;
-      InputStream is = context.getContentResolver().openInputStream(imageUri);
-      BitmapFactory.decodeStream(is, null, options);
+  }
 
-      // get bitmap with size of closest power of 2
-      options.inSampleSize = calculateInSampleSize(options, thumbnailWidth, thumbnailHeight);
-      options.inJustDecodeBounds = false;
-      is = context.getContentResolver().openInputStream(imageUri);
-      bitmap = BitmapFactory.decodeStream(is, null, options);
-      is.close();
+  // Waits for task run by this or another thread, and rethrows its failure
+  private static <T> T getResult(FutureTask<T> task, String description) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for " + description);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
     }
+  }
 
-    if (bitmap != null) {
+  // Number of getThumbnail calls that were served by already running identical request
+  public long getCoalescedThumbnailRequests() {
+    return metrics.getCounter(PhotoLibraryMetrics.COUNTER_THUMBNAIL_COALESCED);
+  }
+
+  public PhotoLibraryMetrics getMetrics() {
+    return metrics;
+  }
+
+  // Library version changes whenever MediaStore reports a change of images or videos, so results computed from the library know they are stale
+  public void startObservingLibrary(Context context) {
+    context.getContentResolver().registerContentObserver(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true, libraryObserver);
+    context.getContentResolver().registerContentObserver(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, true, libraryObserver);
+    hashIndex.start(context);
+  }
+
+  public void stopObservingLibrary(Context context) {
+    context.getContentResolver().unregisterContentObserver(libraryObserver);
+    hashIndex.stop();
+  }
+
+  long getLibraryVersion() {
+    return libraryVersion.get();
+  }
+
+  // Called with level of ComponentCallbacks2.onTrimMemory. Caches are rebuilt on demand, so they are dropped under pressure.
+  public void trimMemory(int level) {
+
+    metrics.increment(PhotoLibraryMetrics.COUNTER_MEMORY_TRIMS);
+
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      thumbnailCache.evictAll();
+      videoFrameCache.evictAll();
+      mediaFileCache.evictAll();
+      spatialIndex.clear();
+      timeline.clear();
+      regionDecoder.clear();
+      hashIndex.clear();
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      thumbnailCache.trimToSize(thumbnailCache.maxSize() / 2);
+      videoFrameCache.trimToSize(videoFrameCache.maxSize() / 2);
+      mediaFileCache.trimToSize(mediaFileCache.maxSize() / 2);
+    }
+
+  }
+
+  private PictureData createThumbnail(Context context, String photoId, int thumbnailWidth, int thumbnailHeight, double quality,
+    String outputFormat, int targetByteSize) throws IOException {
+
+    Bitmap bitmap = null;
+
+    MediaFile mediaFile = resolveMediaFile(context, photoId);
+
+    if (mediaFile.isVideo) {
+      return createVideoThumbnail(getImageId(photoId), mediaFile.path, thumbnailWidth, thumbnailHeight, quality, outputFormat, targetByteSize);
+    }
+
+    String imageURL = mediaFile.path;
+
+    File imageFile = new File(imageURL);
+
+    // correct image orientation, read before decode as rotation takes memory too
+    int orientation = getImageOrientation(imageFile);
+    boolean rotated = orientation > 1;
+
+    long budgetBytes = 0;
+
+    try {
+
+      long decodeStart = PhotoLibraryMetrics.start();
+
+      // TODO: maybe it never worth using MediaStore.Images.Thumbnails.getThumbnail, as it returns sizes less than 512x384?
+      if (thumbnailWidth == 512 && thumbnailHeight == 384) { // In such case, thumbnail will be cached by MediaStore
+        int imageId = getImageId(photoId);
+        budgetBytes = decodeBudget.acquire(rotated ? MINI_THUMBNAIL_BYTES * 2 : MINI_THUMBNAIL_BYTES);
+        // For some reason and against documentation, MINI_KIND image can be returned in size different from 512x384, so the image will be scaled later if needed
+        bitmap = MediaStore.Images.Thumbnails.getThumbnail(
+          context.getContentResolver(),
+          imageId ,
+          MediaStore.Images.Thumbnails.MINI_KIND,
+          (BitmapFactory.Options) null);
+      }
+
+      if (bitmap == null) { // No free caching here
+        Uri imageUri = Uri.fromFile(imageFile);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+
+        options.inJustDecodeBounds = true;
+        InputStream is = context.getContentResolver().openInputStream(imageUri);
+        BitmapFactory.decodeStream(is, null, options);
+        is.close();
+
+        // get bitmap with size of closest power of 2
+        options.inSampleSize = calculateInSampleSize(options, thumbnailWidth, thumbnailHeight);
+        decodeBudget.release(budgetBytes); // of MINI_KIND attempt
+        budgetBytes = 0; // so it is not released again if acquire is interrupted
+        budgetBytes = acquireDecodeBudget(options, rotated);
+        options.inJustDecodeBounds = false;
+        is = context.getContentResolver().openInputStream(imageUri);
+        bitmap = BitmapFactory.decodeStream(is, null, options);
+        is.close();
+      }
+
+      metrics.recordStage(PhotoLibraryMetrics.STAGE_DECODE, decodeStart);
+
+      if (bitmap == null) {
+        return null;
+      }
+
+      long transformStart = PhotoLibraryMetrics.start();
 
-      // correct image orientation
-      int orientation = getImageOrientation(imageFile);
       Bitmap rotatedBitmap = rotateImage(bitmap, orientation);
       if (bitmap != rotatedBitmap) {
         bitmap.recycle();
@@ -135,25 +398,260 @@ public class PhotoLibraryService {
         rotatedBitmap.recycle();
       }
 
-      // TODO: cache bytes for performance
+      metrics.recordStage(PhotoLibraryMetrics.STAGE_TRANSFORM, transformStart);
 
-      byte[] bytes = getJpegBytesFromBitmap(thumbnailBitmap, quality);
-      String mimeType = "image/jpeg";
+      PictureData thumbnail = encodeThumbnail(thumbnailBitmap, quality, outputFormat, targetByteSize);
 
       thumbnailBitmap.recycle();
 
-      return new PictureData(bytes, mimeType);
+      return thumbnail;
 
+    } finally {
+      decodeBudget.release(budgetBytes);
     }
 
-    return null;
+  }
+
+  // Thumbnail of video is cropped from its cached frame, so other sizes of the same video do not extract the frame again
+  private PictureData createVideoThumbnail(int videoId, String videoPath, int thumbnailWidth, int thumbnailHeight, double quality,
+    String outputFormat, int targetByteSize) throws IOException {
+
+    Bitmap frame = getVideoFrame(videoId, videoPath);
+    if (frame == null) {
+      return null;
+    }
+
+    long transformStart = PhotoLibraryMetrics.start();
+    Bitmap thumbnailBitmap = ThumbnailUtils.extractThumbnail(frame, thumbnailWidth, thumbnailHeight);
+    metrics.recordStage(PhotoLibraryMetrics.STAGE_TRANSFORM, transformStart);
+
+    PictureData thumbnail = encodeThumbnail(thumbnailBitmap, quality, outputFormat, targetByteSize);
+
+    if (thumbnailBitmap != frame) { // frame stays in the cache
+      thumbnailBitmap.recycle();
+    }
+
+    return thumbnail;
+
+  }
+
+  private PictureData encodeThumbnail(Bitmap thumbnailBitmap, double quality, String outputFormat, int targetByteSize) throws IOException {
+
+    long encodeStart = PhotoLibraryMetrics.start();
+    byte[] bytes = targetByteSize > 0
+      ? getBytesFromBitmapWithinSize(thumbnailBitmap, outputFormat, quality, targetByteSize)
+      : getBytesFromBitmap(thumbnailBitmap, outputFormat, quality);
+    metrics.recordStage(PhotoLibraryMetrics.STAGE_ENCODE, encodeStart);
+
+    return new PictureData(bytes, "image/" + outputFormat);
+
+  }
+
+  // Frame of the video scaled to VIDEO_FRAME_SIZE. Extracted once per video, identical requests that arrive meanwhile wait for it.
+  // Returned bitmap is shared through the cache, so it must not be recycled.
+  private Bitmap getVideoFrame(final int videoId, final String videoPath) throws IOException {
+
+    Bitmap cached = videoFrameCache.get(videoId);
+    if (cached != null) {
+      metrics.increment(PhotoLibraryMetrics.COUNTER_VIDEO_FRAME_CACHE_HITS);
+      return cached;
+    }
+    metrics.increment(PhotoLibraryMetrics.COUNTER_VIDEO_FRAME_CACHE_MISSES);
+
+    FutureTask<Bitmap> task = new FutureTask<Bitmap>(new Callable<Bitmap>() {
+      @Override
+      public Bitmap call() throws Exception {
+        metrics.inFlightDecodes.incrementAndGet();
+        try {
+          Bitmap frame = extractVideoFrame(videoPath);
+          if (frame != null) {
+            videoFrameCache.put(videoId, frame);
+          }
+          return frame;
+        } finally {
+          metrics.inFlightDecodes.decrementAndGet();
+        }
+      }
+    });
+
+    FutureTask<Bitmap> inFlightTask = inFlightVideoFrames.putIfAbsent(videoId, task);
+    if (inFlightTask == null) {
+      inFlightTask = task;
+      try {
+        task.run();
+      } finally {
+        inFlightVideoFrames.remove(videoId, task);
+      }
+    }
+
+    return getResult(inFlightTask, "video frame");
+
+  }
+
+  private Bitmap extractVideoFrame(String videoPath) throws IOException {
+
+    long start = PhotoLibraryMetrics.start();
 
+    MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+    long budgetBytes = 0;
+
+    try {
+
+      retriever.setDataSource(videoPath);
+
+      // Frame is decoded at full size of the video, and rotated by the retriever, so it takes memory as a rotated photo
+      int width = parseIntMetadata(retriever, MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH);
+      int height = parseIntMetadata(retriever, MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT);
+      int rotation = parseIntMetadata(retriever, MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
+      long bytes = (long) width * height * 4;
+      budgetBytes = decodeBudget.acquire(rotation != 0 ? bytes * 2 : bytes);
+
+      Bitmap frame = retriever.getFrameAtTime(); // representative frame, chosen by the retriever
+      if (frame == null) {
+        return null;
+      }
+
+      float scale = Math.min(1f, (float) VIDEO_FRAME_SIZE / Math.max(frame.getWidth(), frame.getHeight()));
+      Bitmap scaledFrame = Bitmap.createScaledBitmap(frame,
+        Math.max(1, Math.round(frame.getWidth() * scale)), Math.max(1, Math.round(frame.getHeight() * scale)), true);
+      if (frame != scaledFrame) {
+        frame.recycle();
+      }
+
+      metrics.recordStage(PhotoLibraryMetrics.STAGE_VIDEO_FRAME, start);
+
+      return scaledFrame;
+
+    } catch (RuntimeException e) { // setDataSource and getFrameAtTime fail with runtime exceptions on unsupported videos
+      throw new IOException("Could not extract frame of " + videoPath, e);
+    } finally {
+      retriever.release();
+      decodeBudget.release(budgetBytes);
+    }
+
+  }
+
+  private static int parseIntMetadata(MediaMetadataRetriever retriever, int key) {
+    String value = retriever.extractMetadata(key);
+    try {
+      return value != null ? Integer.parseInt(value) : 0;
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  // Searches similarity index as indexed so far, and queues its update with new and changed images if needed.
+  // photoId is null to find all groups of similar photos. Returns {similar, isComplete, indexed, total}.
+  public JSONObject findSimilar(Context context, String photoId, int threshold, boolean compactIds) throws IOException, JSONException {
+    return hashIndex.findSimilar(context, photoId, threshold, compactIds);
+  }
+
+  // Counts of photos per day, month or year, most recent first. Cached until the library changes.
+  public JSONObject getTimeline(Context context, String granularity, JSONObject filters) throws JSONException {
+    return timeline.getTimeline(context, granularity, filters);
+  }
+
+  // Geotagged photos inside bbox {south, west, north, east}, most recent first, at most limit of them when limit is positive.
+  // Index is built on first call, and rebuilt in background after the library changes.
+  public JSONArray queryRegion(Context context, JSONObject bbox, int limit, boolean compactIds) throws JSONException {
+    return spatialIndex.queryRegion(context, bbox, limit, compactIds);
+  }
+
+  // Counts and representative photos of web mercator tiles of zoom inside bbox
+  public JSONArray clusterRegion(Context context, JSONObject bbox, int zoom, boolean compactIds) throws JSONException {
+    return spatialIndex.clusterRegion(context, bbox, zoom, compactIds);
+  }
+
+  // 64 bit difference hash (dHash): image is reduced to 9x8 gray pixels, and each bit tells if a pixel is brighter than its right neighbour.
+  // Resized and recompressed copies of a photo get same or close hashes.
+  long computeDifferenceHash(String imagePath) throws IOException {
+
+    long start = PhotoLibraryMetrics.start();
+
+    File imageFile = new File(imagePath);
+    int orientation = getImageOrientation(imageFile);
+
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeFile(imagePath, options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      throw new IOException("Could not decode " + imagePath);
+    }
+
+    options.inSampleSize = calculateInSampleSize(options, HASH_DECODE_SIZE, HASH_DECODE_SIZE);
+    options.inJustDecodeBounds = false;
+
+    int[] pixels = new int[9 * 8];
+
+    long budgetBytes = acquireDecodeBudget(options, orientation > 1);
+    try {
+
+      Bitmap bitmap = BitmapFactory.decodeFile(imagePath, options);
+      if (bitmap == null) {
+        throw new IOException("Could not decode " + imagePath);
+      }
+
+      // Hash of rotated copy should match, so the hash is taken of image as it is displayed
+      Bitmap rotatedBitmap = rotateImage(bitmap, orientation);
+      if (bitmap != rotatedBitmap) {
+        bitmap.recycle();
+      }
+
+      Bitmap hashBitmap = Bitmap.createScaledBitmap(rotatedBitmap, 9, 8, true);
+      if (rotatedBitmap != hashBitmap) {
+        rotatedBitmap.recycle();
+      }
+
+      hashBitmap.getPixels(pixels, 0, 9, 0, 0, 9, 8);
+      hashBitmap.recycle();
+
+    } finally {
+      decodeBudget.release(budgetBytes);
+    }
+
+    long hash = 0;
+    for (int y = 0; y < 8; y++) {
+      for (int x = 0; x < 8; x++) {
+        hash <<= 1;
+        if (luminance(pixels[y * 9 + x]) > luminance(pixels[y * 9 + x + 1])) {
+          hash |= 1;
+        }
+      }
+    }
+
+    metrics.recordStage(PhotoLibraryMetrics.STAGE_HASH, start);
+
+    return hash;
+
+  }
+
+  private static int luminance(int color) {
+    return (299 * ((color >> 16) & 0xFF) + 587 * ((color >> 8) & 0xFF) + 114 * (color & 0xFF)) / 1000;
+  }
+
+  static void throwIfCancelled(AtomicBoolean cancelled) {
+    if (cancelled != null && cancelled.get()) {
+      throw new CancellationException(CANCELLED_ERROR);
+    }
+  }
+
+  // Waits for memory to decode the image. Image that can not fit into whole budget is decoded with larger inSampleSize.
+  private long acquireDecodeBudget(BitmapFactory.Options options, boolean rotated) throws InterruptedIOException {
+    if (decodeBudget.downgradeToFit(options, rotated)) {
+      metrics.increment(PhotoLibraryMetrics.COUNTER_DOWNGRADED_DECODES);
+    }
+    return decodeBudget.acquire(PhotoLibraryDecodeBudget.estimateBytes(options, rotated));
   }
 
   public PictureAsStream getPhotoAsStream(Context context, String photoId) throws IOException {
+    return getPhotoAsStream(context, photoId, null);
+  }
+
+  // cancelled is checked before the expensive steps of rotated photo, CancellationException is thrown when it is set
+  public PictureAsStream getPhotoAsStream(Context context, String photoId, AtomicBoolean cancelled) throws IOException {
 
     int imageId = getImageId(photoId);
-    String imageURL = getImageURL(photoId);
+    String imageURL = resolveImagePath(context, photoId);
     File imageFile = new File(imageURL);
     Uri imageUri = Uri.fromFile(imageFile);
 
@@ -165,18 +663,53 @@ public class PhotoLibraryService {
       int orientation = getImageOrientation(imageFile);
       if (orientation > 1) { // Image should be rotated
 
-        Bitmap bitmap = BitmapFactory.decodeStream(is, null, null);
-        is.close();
+        long budgetBytes = 0;
+        metrics.inFlightDecodes.incrementAndGet();
+        try {
 
-        Bitmap rotatedBitmap = rotateImage(bitmap, orientation);
+          long decodeStart = PhotoLibraryMetrics.start();
 
-        bitmap.recycle();
+          BitmapFactory.Options options = new BitmapFactory.Options();
+          options.inJustDecodeBounds = true;
+          BitmapFactory.decodeStream(is, null, options);
+          is.close();
+
+          // Full size is decoded when memory allows, otherwise the photo is downscaled instead of failing with OOM
+          budgetBytes = acquireDecodeBudget(options, true);
+          throwIfCancelled(cancelled); // waiting for memory could take long
+          options.inJustDecodeBounds = false;
+          is = context.getContentResolver().openInputStream(imageUri);
+          Bitmap bitmap = BitmapFactory.decodeStream(is, null, options);
+          is.close();
+          metrics.recordStage(PhotoLibraryMetrics.STAGE_DECODE, decodeStart);
+
+          long transformStart = PhotoLibraryMetrics.start();
+          Bitmap rotatedBitmap = rotateImage(bitmap, orientation);
+          metrics.recordStage(PhotoLibraryMetrics.STAGE_TRANSFORM, transformStart);
+
+          if (bitmap != rotatedBitmap) {
+            bitmap.recycle();
+          }
+
+          if (cancelled != null && cancelled.get()) {
+            rotatedBitmap.recycle();
+            throwIfCancelled(cancelled);
+          }
+
+          // Here we perform conversion with data loss, but it seems better than handling orientation in JavaScript.
+          // Converting to PNG can be an option to prevent data loss, but in price of very large files.
+          long encodeStart = PhotoLibraryMetrics.start();
+          byte[] bytes = getJpegBytesFromBitmap(rotatedBitmap, 1.0); // minimize data loss with 1.0 quality
+          metrics.recordStage(PhotoLibraryMetrics.STAGE_ENCODE, encodeStart);
+
+          rotatedBitmap.recycle();
 
-        // Here we perform conversion with data loss, but it seems better than handling orientation in JavaScript.
-        // Converting to PNG can be an option to prevent data loss, but in price of very large files.
-        byte[] bytes = getJpegBytesFromBitmap(rotatedBitmap, 1.0); // minimize data loss with 1.0 quality
+          is = new ByteArrayInputStream(bytes);
 
-        is = new ByteArrayInputStream(bytes);
+        } finally {
+          decodeBudget.release(budgetBytes);
+          metrics.inFlightDecodes.decrementAndGet();
+        }
       }
     }
 
@@ -184,29 +717,334 @@ public class PhotoLibraryService {
 
   }
 
+  private static final int MAX_REGION_SAMPLE_SIZE = 1 << 16; // tiny scales decode region to a few pixels, and are scaled from them
+
+  // Decodes rect of the photo as shown, in pixels of full size photo, and scales it by scale (0..1].
+  // Only the region is decoded, with the largest inSampleSize that keeps its resolution, so memory is proportional to the result.
+  public PictureData getPhotoRegion(Context context, String photoId, Rect rect, double scale, double quality, String outputFormat)
+    throws IOException {
+
+    if (!(scale > 0)) { // NaN too
+      throw new IllegalArgumentException("Scale should be positive");
+    }
+
+    String imagePath = resolveImagePath(context, photoId);
+    int orientation = getImageOrientation(new File(imagePath));
+
+    PhotoLibraryRegionDecoder.Entry decoder = regionDecoder.acquire(imagePath, orientation);
+
+    long budgetBytes = 0;
+    metrics.inFlightDecodes.incrementAndGet();
+    try {
+
+      Rect fileRect = decoder.toFileRect(rect);
+      if (fileRect.isEmpty()) {
+        throw new IllegalArgumentException("Region is outside of the photo");
+      }
+
+      scale = Math.min(1, scale);
+      boolean rotated = orientation > 1;
+
+      long decodeStart = PhotoLibraryMetrics.start();
+
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.outWidth = fileRect.width();
+      options.outHeight = fileRect.height();
+      options.inSampleSize = Integer.highestOneBit((int) Math.min(MAX_REGION_SAMPLE_SIZE, Math.floor(1 / scale)));
+      budgetBytes = acquireDecodeBudget(options, rotated);
+
+      Bitmap bitmap = decoder.decodeRegion(fileRect, options);
+      metrics.recordStage(PhotoLibraryMetrics.STAGE_DECODE, decodeStart);
+
+      if (bitmap == null) {
+        throw new IOException("Could not decode region of " + imagePath);
+      }
+
+      long transformStart = PhotoLibraryMetrics.start();
+
+      Bitmap rotatedBitmap = rotateImage(bitmap, orientation);
+      if (bitmap != rotatedBitmap) {
+        bitmap.recycle();
+      }
+
+      // inSampleSize is a power of 2, exact scale is reached by scaling the decoded region
+      int width = Math.max(1, (int) Math.round(fileRect.width() * scale));
+      int height = Math.max(1, (int) Math.round(fileRect.height() * scale));
+      if (isOrientationSwapsDimensions(orientation)) {
+        int temp = width;
+        width = height;
+        height = temp;
+      }
+      Bitmap scaledBitmap = rotatedBitmap;
+      if (rotatedBitmap.getWidth() != width || rotatedBitmap.getHeight() != height) {
+        scaledBitmap = Bitmap.createScaledBitmap(rotatedBitmap, width, height, true);
+        rotatedBitmap.recycle();
+      }
+
+      metrics.recordStage(PhotoLibraryMetrics.STAGE_TRANSFORM, transformStart);
+
+      long encodeStart = PhotoLibraryMetrics.start();
+      byte[] bytes = getBytesFromBitmap(scaledBitmap, outputFormat, quality);
+      metrics.recordStage(PhotoLibraryMetrics.STAGE_ENCODE, encodeStart);
+
+      scaledBitmap.recycle();
+
+      return new PictureData(bytes, "image/" + outputFormat);
+
+    } finally {
+      decodeBudget.release(budgetBytes);
+      metrics.inFlightDecodes.decrementAndGet();
+      decoder.release();
+    }
+
+  }
+
   public PictureData getPhoto(Context context, String photoId) throws IOException {
+    return getPhoto(context, photoId, null);
+  }
+
+  public PictureData getPhoto(Context context, String photoId, AtomicBoolean cancelled) throws IOException {
 
-    PictureAsStream pictureAsStream = getPhotoAsStream(context, photoId);
+    throwIfCancelled(cancelled);
+
+    PictureAsStream pictureAsStream = getPhotoAsStream(context, photoId, cancelled);
 
     byte[] bytes =  readBytes(pictureAsStream.getStream());
     pictureAsStream.getStream().close();
 
-    return new PictureData(bytes, pictureAsStream.getMimeType());
+    return new PictureData(bytes, pictureAsStream.getMimeType());
+
+  }
+
+  // Copies originals of photos into targetDir, several files at a time. Bytes go from file to file natively, and not through the webview.
+  // Photos are copied as is, unless applyOrientation is set, then rotated jpegs are re-encoded upright as by getPhoto.
+  // Returns [{id, index, url, size}] in order of photoIds, with {id, index, error} for photos that failed.
+  public JSONArray exportPhotos(final Context context, List<String> photoIds, final File targetDir, final boolean applyOrientation,
+    final ExportProgressRunnable progress) throws IOException, JSONException {
+
+    if (!targetDir.isDirectory() && !targetDir.mkdirs()) {
+      throw new IOException("Could not create " + targetDir.getAbsolutePath());
+    }
+
+    final int total = photoIds.size();
+    final AtomicInteger completed = new AtomicInteger();
+
+    ArrayList<Future<JSONObject>> exports = new ArrayList<Future<JSONObject>>(total);
+    for (int i = 0; i < total; i++) {
+      final String photoId = photoIds.get(i);
+      final int index = i;
+      exports.add(exportExecutor.submit(new Callable<JSONObject>() {
+        @Override
+        public JSONObject call() throws Exception {
+
+          JSONObject file = new JSONObject();
+          file.put("id", photoId);
+          file.put("index", index);
+
+          try {
+            File exportedFile = exportPhoto(context, photoId, targetDir, applyOrientation);
+            file.put("url", Uri.fromFile(exportedFile).toString());
+            file.put("size", exportedFile.length());
+          } catch (Exception e) {
+            e.printStackTrace();
+            file.put("error", e.getMessage());
+          }
+
+          progress.run(file, completed.incrementAndGet(), total);
+
+          return file;
+
+        }
+      }));
+    }
+
+    JSONArray result = new JSONArray();
+    for (Future<JSONObject> export : exports) {
+      try {
+        result.put(export.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for export");
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof JSONException) {
+          throw (JSONException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        throw new IOException(cause);
+      }
+    }
+    return result;
+
+  }
+
+  private File exportPhoto(Context context, String photoId, File targetDir, boolean applyOrientation) throws IOException {
+
+    long start = PhotoLibraryMetrics.start();
+
+    File sourceFile = new File(resolveImagePath(context, photoId));
+    File targetFile = createExportFile(targetDir, sourceFile.getName());
+
+    boolean exported = false;
+    try {
+
+      FileChannel target = new FileOutputStream(targetFile).getChannel();
+      try {
+        InputStream source = applyOrientation ? getPhotoAsStream(context, photoId).getStream() : new FileInputStream(sourceFile);
+        if (source instanceof FileInputStream) { // not rotated
+          try {
+            transferFully(((FileInputStream) source).getChannel(), target);
+          } finally {
+            source.close();
+          }
+        } else {
+          copyChannel(Channels.newChannel(source), target);
+        }
+      } finally {
+        target.close();
+      }
+      exported = true;
+
+    } finally {
+      if (!exported) {
+        targetFile.delete();
+      }
+    }
+
+    metrics.recordStage(PhotoLibraryMetrics.STAGE_WRITE, start);
+
+    return targetFile;
+
+  }
+
+  // Keeps name of the original, with number added when targetDir already has such file
+  private static File createExportFile(File targetDir, String fileName) throws IOException {
+
+    int dot = fileName.lastIndexOf('.');
+    String name = dot > 0 ? fileName.substring(0, dot) : fileName;
+    String extension = dot > 0 ? fileName.substring(dot) : "";
+
+    File result = new File(targetDir, fileName);
+    for (int i = 1; !result.createNewFile(); i++) { // atomically claims the name, as files are exported in parallel
+      result = new File(targetDir, name + "-" + i + extension);
+    }
+    return result;
+
+  }
+
+  public void saveImage(final Context context, final CordovaInterface cordova, final String url, String album, final JSONObjectRunnable completion)
+    throws IOException, URISyntaxException {
+
+    saveMedia(context, cordova, url, album, imageMimeToExtension, new FilePathRunnable() {
+      @Override
+      public void run(String filePath) {
+        try {
+          // Find the saved image in the library and return it as libraryItem
+          String whereClause = MediaStore.MediaColumns.DATA + " = \"" + filePath + "\"";
+          queryLibrary(context, whereClause, new ChunkResultRunnable() {
+            @Override
+            public void run(ArrayList<JSONObject> chunk, int chunkNum, boolean isLastChunk, boolean isCancelled) {
+              completion.run(chunk.size() == 1 ? chunk.get(0) : null);
+            }
+          });
+        } catch (Exception e) {
+          completion.run(null);
+        }
+      }
+    });
+
+  }
+
+  // Writes all the images, then adds them to media library with single scan and finds them with single query.
+  // completion receives library items in order of urls, null for the ones that could not be saved or were not found.
+  // A url that fails does not stop the others, so images already written are always scanned into the library.
+  public void saveImages(final Context context, final CordovaInterface cordova, final List<String> urls, String album, final JSONArrayRunnable completion)
+    throws IOException, URISyntaxException {
+
+    File albumDirectory = makeAlbumInPhotoLibrary(album);
+
+    final String[] filePaths = new String[urls.size()];
+    List<String> writtenPaths = new ArrayList<String>(filePaths.length);
+    for (int i = 0; i < filePaths.length; i++) {
+      long writeStart = PhotoLibraryMetrics.start();
+      try {
+        filePaths[i] = writeMediaFile(cordova, urls.get(i), albumDirectory, imageMimeToExtension).getAbsolutePath();
+        writtenPaths.add(filePaths[i]);
+      } catch (Exception e) {
+        e.printStackTrace(); // Bad url or dataURL, its slot stays null
+        continue;
+      }
+      metrics.recordStage(PhotoLibraryMetrics.STAGE_WRITE, writeStart);
+    }
+
+    if (writtenPaths.isEmpty()) {
+      JSONArray result = new JSONArray();
+      for (int i = 0; i < filePaths.length; i++) {
+        result.put(JSONObject.NULL);
+      }
+      completion.run(result);
+      return;
+    }
+
+    final Map<String, Uri> scannedUris = new ConcurrentHashMap<String, Uri>();
+    final AtomicInteger scansLeft = new AtomicInteger(writtenPaths.size());
+    final long scanStart = PhotoLibraryMetrics.start();
+
+    MediaScannerConnection.scanFile(context, writtenPaths.toArray(new String[0]), null, new MediaScannerConnection.OnScanCompletedListener() {
+      @Override
+      public void onScanCompleted(String path, Uri uri) {
+        if (uri != null) {
+          scannedUris.put(path, uri);
+        }
+        if (scansLeft.decrementAndGet() == 0) {
+          metrics.recordStage(PhotoLibraryMetrics.STAGE_SCAN, scanStart);
+          completion.run(findSavedItems(context, filePaths, scannedUris));
+        }
+      }
+    });
+
+  }
+
+  private JSONArray findSavedItems(Context context, String[] filePaths, Map<String, Uri> scannedUris) {
+
+    final JSONArray result = new JSONArray();
+
+    try {
+
+      ArrayList<Long> ids = new ArrayList<Long>(scannedUris.size());
+      for (Uri uri : scannedUris.values()) {
+        ids.add(ContentUris.parseId(uri));
+      }
+
+      Map<Long, JSONObject> itemsById = queryLibraryItemsByIds(context, ids, false, false);
+
+      for (String filePath : filePaths) {
+        Uri uri = filePath != null ? scannedUris.get(filePath) : null;
+        JSONObject item = uri != null ? itemsById.get(ContentUris.parseId(uri)) : null;
+        result.put(item != null ? item : JSONObject.NULL);
+      }
+
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+
+    return result;
 
   }
 
-  public void saveImage(final Context context, final CordovaInterface cordova, final String url, String album, final JSONObjectRunnable completion)
+  public void saveVideo(final Context context, final CordovaInterface cordova, String url, String album, final JSONObjectRunnable completion)
     throws IOException, URISyntaxException {
 
-    saveMedia(context, cordova, url, album, imageMimeToExtension, new FilePathRunnable() {
+    saveMedia(context, cordova, url, album, videMimeToExtension, new FilePathRunnable() {
       @Override
       public void run(String filePath) {
         try {
-          // Find the saved image in the library and return it as libraryItem
+          // Find the saved video in the library and return it as libraryItem
           String whereClause = MediaStore.MediaColumns.DATA + " = \"" + filePath + "\"";
           queryLibrary(context, whereClause, new ChunkResultRunnable() {
             @Override
-            public void run(ArrayList<JSONObject> chunk, int chunkNum, boolean isLastChunk) {
+            public void run(ArrayList<JSONObject> chunk, int chunkNum, boolean isLastChunk, boolean isCancelled) {
               completion.run(chunk.size() == 1 ? chunk.get(0) : null);
             }
           });
@@ -218,18 +1056,6 @@ public class PhotoLibraryService {
 
   }
 
-  public void saveVideo(final Context context, final CordovaInterface cordova, String url, String album)
-    throws IOException, URISyntaxException {
-
-    saveMedia(context, cordova, url, album, videMimeToExtension, new FilePathRunnable() {
-      @Override
-      public void run(String filePath) {
-        // TODO: call queryLibrary and return libraryItem of what was saved
-      }
-    });
-
-  }
-
   public class PictureData {
 
     public final byte[] bytes;
@@ -258,15 +1084,78 @@ public class PhotoLibraryService {
 
   }
 
-  private static PhotoLibraryService instance = null;
+  private static volatile PhotoLibraryService instance = null;
+
+  // Service is shared by all threads of cordova thread pool, and SimpleDateFormat is not thread-safe, so each thread gets its own
+  private static final ThreadLocal<SimpleDateFormat> dateFormatter = new ThreadLocal<SimpleDateFormat>() {
+    @Override
+    protected SimpleDateFormat initialValue() {
+      SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+      formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return formatter;
+    }
+  };
+
+  private final PhotoLibraryMetrics metrics = new PhotoLibraryMetrics();
+
+  private final PhotoLibraryHashIndex hashIndex = new PhotoLibraryHashIndex(this);
+  private static final int HASH_DECODE_SIZE = 64; // pixels, image is decoded to at least this size before it is reduced to 9x8
+
+  private final PhotoLibrarySpatialIndex spatialIndex = new PhotoLibrarySpatialIndex(this);
+  private final PhotoLibraryTimeline timeline = new PhotoLibraryTimeline(this);
+  private final PhotoLibraryRegionDecoder regionDecoder = new PhotoLibraryRegionDecoder();
+
+  private final AtomicLong libraryVersion = new AtomicLong();
+  private final ContentObserver libraryObserver = new ContentObserver(null) { // called on binder thread
+    @Override
+    public void onChange(boolean selfChange) {
+      libraryVersion.incrementAndGet();
+      hashIndex.onLibraryChanged();
+    }
+  };
+
+  // Bitmaps of API 26+ are not in java heap, but its size is still a fair measure of what device can afford
+  private final PhotoLibraryDecodeBudget decodeBudget = new PhotoLibraryDecodeBudget(Runtime.getRuntime().maxMemory() / 4, metrics);
+  private static final long MINI_THUMBNAIL_BYTES = 512 * 384 * 4;
+
+  // Resolves photoIds to paths and media types. Filled on demand, as only items shown to the user are requested.
+  private static final int MEDIA_FILE_CACHE_SIZE = 1000; // entries
+  private final LruCache<Integer, MediaFile> mediaFileCache = new LruCache<Integer, MediaFile>(MEDIA_FILE_CACHE_SIZE);
+
+  private final ConcurrentHashMap<String, FutureTask<PictureData>> inFlightThumbnails = new ConcurrentHashMap<String, FutureTask<PictureData>>();
+  private final ConcurrentHashMap<Integer, FutureTask<Bitmap>> inFlightVideoFrames = new ConcurrentHashMap<Integer, FutureTask<Bitmap>>();
+
+  // Exports are bound by storage throughput, more parallel copies would only add seeks
+  private static final int EXPORT_PARALLELISM = 3;
+  private final ExecutorService exportExecutor = Executors.newFixedThreadPool(EXPORT_PARALLELISM);
 
-  private SimpleDateFormat dateFormatter;
+  private final ConcurrentHashMap<String, AtomicInteger> fileNameCounters = new ConcurrentHashMap<String, AtomicInteger>();
+
+  private final ConcurrentHashMap<String, AtomicBoolean> sessions = new ConcurrentHashMap<String, AtomicBoolean>();
 
   private Pattern dataURLPattern = Pattern.compile("^data:(.+?)/(.+?);base64,");
 
   private ArrayList<JSONObject> queryContentProvider(Context context, Uri collection, JSONObject columns, String whereClause) throws JSONException {
 
-    final ArrayList<String> columnNames = new ArrayList<String>();
+    final Cursor cursor = openContentProviderCursor(context, collection, columns, whereClause, null);
+
+    final ArrayList<JSONObject> buffer = new ArrayList<JSONObject>();
+
+    try {
+      while (cursor.moveToNext()) {
+        buffer.add(readCursorRow(cursor, columns));
+      }
+    } finally {
+      cursor.close();
+    }
+
+    return buffer;
+
+  }
+
+  Cursor openContentProviderCursor(Context context, Uri collection, JSONObject columns, String whereClause, String[] whereArgs)
+    throws JSONException {
+
     final ArrayList<String> columnValues = new ArrayList<String>();
 
     Iterator<String> iteratorFields = columns.keys();
@@ -274,86 +1163,122 @@ public class PhotoLibraryService {
     while (iteratorFields.hasNext()) {
       String column = iteratorFields.next();
 
-      columnNames.add(column);
       columnValues.add("" + columns.getString(column));
     }
 
-    final String sortOrder = MediaStore.Images.Media.DATE_TAKEN + " DESC";
+    final String sortOrder = CREATION_DATE_COLUMN + " DESC";
 
-    final Cursor cursor = context.getContentResolver().query(
+    long start = PhotoLibraryMetrics.start();
+
+    Cursor cursor = context.getContentResolver().query(
       collection,
       columnValues.toArray(new String[columns.length()]),
-      whereClause, null, sortOrder);
+      whereClause, whereArgs, sortOrder);
 
-    final ArrayList<JSONObject> buffer = new ArrayList<JSONObject>();
+    metrics.recordStage(PhotoLibraryMetrics.STAGE_QUERY, start);
 
-    if (cursor.moveToFirst()) {
-      do {
-        JSONObject item = new JSONObject();
+    return cursor;
 
-        for (String column : columnNames) {
-          int columnIndex = cursor.getColumnIndex(columns.get(column).toString());
+  }
 
-          if (column.startsWith("int.")) {
-            item.put(column.substring(4), cursor.getInt(columnIndex));
-            if (column.substring(4).equals("width") && item.getInt("width") == 0) {
-              System.err.println("cursor: " + cursor.getInt(columnIndex));
-            }
-          } else if (column.startsWith("float.")) {
-            item.put(column.substring(6), cursor.getFloat(columnIndex));
-          } else if (column.startsWith("date.")) {
-            long intDate = cursor.getLong(columnIndex);
-            Date date = new Date(intDate);
-            item.put(column.substring(5), dateFormatter.format(date));
-          } else {
-            item.put(column, cursor.getString(columnIndex));
-          }
-        }
-        buffer.add(item);
+  private JSONObject readCursorRow(Cursor cursor, JSONObject columns) throws JSONException {
 
-        // TODO: return partial result
+    JSONObject item = new JSONObject();
+    SimpleDateFormat dateFormatter = PhotoLibraryService.dateFormatter.get();
+    Date date = new Date(); // reused for all dates of the row
+
+    Iterator<String> iteratorFields = columns.keys();
 
+    while (iteratorFields.hasNext()) {
+      String column = iteratorFields.next();
+      int columnIndex = cursor.getColumnIndex(columns.get(column).toString());
+
+      if (column.startsWith("int.")) {
+        item.put(column.substring(4), cursor.getInt(columnIndex));
+      } else if (column.startsWith("float.")) {
+        item.put(column.substring(6), cursor.getFloat(columnIndex));
+      } else if (column.startsWith("date.")) {
+        date.setTime(cursor.getLong(columnIndex));
+        item.put(column.substring(5), dateFormatter.format(date));
+      } else {
+        item.put(column, cursor.getString(columnIndex));
       }
-      while (cursor.moveToNext());
     }
 
-    cursor.close();
-
-    return buffer;
+    return item;
 
   }
 
-  private void queryLibrary(Context context, String whereClause, ChunkResultRunnable completion) throws JSONException {
-    queryLibrary(context, 0, 0, false, whereClause, completion);
-  }
+  // SQLite allows 999 host parameters per statement by default
+  private static final int MAX_IDS_PER_QUERY = 500;
 
-  private void queryLibrary(Context context, int itemsInChunk, double chunkTimeSec, boolean includeAlbumData, String whereClause, ChunkResultRunnable completion)
+  // Looks up library items with _ID IN (...) queries, chunked to fit SQLite parameters limit
+  private Map<Long, JSONObject> queryLibraryItemsByIds(Context context, List<Long> ids, boolean includeAlbumData, boolean compactIds)
     throws JSONException {
 
+    final Map<Long, JSONObject> itemsById = new HashMap<Long, JSONObject>();
+
+    ChunkResultRunnable collect = new ChunkResultRunnable() {
+      @Override
+      public void run(ArrayList<JSONObject> chunk, int chunkNum, boolean isLastChunk, boolean isCancelled) {
+        for (JSONObject item : chunk) {
+          itemsById.put((long) getImageId(item.optString("id")), item);
+        }
+      }
+    };
+
+    for (int from = 0; from < ids.size(); from += MAX_IDS_PER_QUERY) {
+      int to = Math.min(ids.size(), from + MAX_IDS_PER_QUERY);
+
+      StringBuilder whereClause = new StringBuilder(MediaStore.MediaColumns._ID).append(" IN (");
+      String[] whereArgs = new String[to - from];
+      for (int i = from; i < to; i++) {
+        whereClause.append(i == from ? "?" : ",?");
+        whereArgs[i - from] = Long.toString(ids.get(i));
+      }
+      whereClause.append(")");
+
+      queryLibrary(context, 0, 0, true, true, includeAlbumData, compactIds, whereClause.toString(), whereArgs, null, collect);
+    }
+
+    return itemsById;
+
+  }
+
+  // Columns of library item, as read by readLibraryItem
+  static JSONObject createLibraryColumns() throws JSONException {
+
     // All columns here: https://developer.android.com/reference/android/provider/MediaStore.Images.ImageColumns.html,
     // https://developer.android.com/reference/android/provider/MediaStore.MediaColumns.html
-    JSONObject columns = new JSONObject() {{
+    // Library is queried from MediaStore.Files, where images and videos share these columns.
+    return new JSONObject() {{
       put("int.id", MediaStore.Images.Media._ID);
+      put("int.mediaType", MediaStore.Files.FileColumns.MEDIA_TYPE);
+      put("mimeType", MediaStore.MediaColumns.MIME_TYPE);
       put("fileName", MediaStore.Images.ImageColumns.DISPLAY_NAME);
       put("int.width", MediaStore.Images.ImageColumns.WIDTH);
       put("int.height", MediaStore.Images.ImageColumns.HEIGHT);
       put("albumId", MediaStore.Images.ImageColumns.BUCKET_ID);
-      put("date.creationDate", MediaStore.Images.ImageColumns.DATE_TAKEN);
+      put("date.creationDate", CREATION_DATE_COLUMN);
       put("float.latitude", MediaStore.Images.ImageColumns.LATITUDE);
       put("float.longitude", MediaStore.Images.ImageColumns.LONGITUDE);
+      put("int.duration", MediaStore.Video.VideoColumns.DURATION); // milliseconds, of videos only
       put("nativeURL", MediaStore.MediaColumns.DATA); // will not be returned to javascript
     }};
 
-    final ArrayList<JSONObject> queryResults = queryContentProvider(context, MediaStore.Images.Media.EXTERNAL_CONTENT_URI, columns, whereClause);
+  }
 
-    ArrayList<JSONObject> chunk = new ArrayList<JSONObject>();
+  // Reads current row of cursor as library item, that is returned to javascript
+  JSONObject readLibraryItem(Cursor cursor, JSONObject columns, boolean includeAlbumData, boolean compactIds) throws JSONException {
 
-    long chunkStartTime = SystemClock.elapsedRealtime();
-    int chunkNum = 0;
+    JSONObject queryResult = readCursorRow(cursor, columns);
 
-    for (int i=0; i<queryResults.size(); i++) {
-      JSONObject queryResult = queryResults.get(i);
+    boolean isVideo = queryResult.getInt("mediaType") == MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO;
+    queryResult.put("mediaType", isVideo ? MEDIA_TYPE_VIDEO : MEDIA_TYPE_IMAGE);
 
+    // Videos have no EXIF, so only images are read for orientation
+    if (!isVideo) {
+      queryResult.remove("duration");
       // swap width and height if needed
       try {
         int orientation = getImageOrientation(new File(queryResult.getString("nativeURL")));
@@ -365,42 +1290,102 @@ public class PhotoLibraryService {
       } catch (IOException e) {
         // Do nothing
       }
+    }
 
-      // photoId is in format "imageid;imageurl"
+    // photoId is in format "imageid;imageurl", or "imageid" when compact ids are requested
+    if (!compactIds) {
       queryResult.put("id",
           queryResult.get("id") + ";" +
           queryResult.get("nativeURL"));
+    } else {
+      queryResult.put("id", Integer.toString(queryResult.getInt("id")));
+    }
 
-      queryResult.remove("nativeURL"); // Not needed
+    queryResult.remove("nativeURL"); // Not needed
 
-      String albumId = queryResult.getString("albumId");
-      queryResult.remove("albumId");
-      if (includeAlbumData) {
-        JSONArray albumsArray = new JSONArray();
-        albumsArray.put(albumId);
-        queryResult.put("albumIds", albumsArray);
-      }
+    String albumId = queryResult.getString("albumId");
+    queryResult.remove("albumId");
+    if (includeAlbumData) {
+      JSONArray albumsArray = new JSONArray();
+      albumsArray.put(albumId);
+      queryResult.put("albumIds", albumsArray);
+    }
+
+    return queryResult;
+
+  }
+
+  private void queryLibrary(Context context, String whereClause, ChunkResultRunnable completion) throws JSONException {
+    queryLibrary(context, 0, 0, true, true, false, false, whereClause, null, null, completion);
+  }
+
+  // Files table holds all files of external storage, so queries of FILES_CONTENT_URI are always restricted to media types of the library.
+  // At least one of includeImages and includeVideos should be set.
+  static String restrictToMediaTypes(String whereClause, boolean includeImages, boolean includeVideos) {
+    String mediaTypeClause = MediaStore.Files.FileColumns.MEDIA_TYPE + (includeImages && includeVideos
+      ? " IN (" + MediaStore.Files.FileColumns.MEDIA_TYPE_IMAGE + "," + MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO + ")"
+      : " = " + (includeImages ? MediaStore.Files.FileColumns.MEDIA_TYPE_IMAGE : MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO));
+    return whereClause == null || whereClause.isEmpty() ? mediaTypeClause : "(" + whereClause + ") AND " + mediaTypeClause;
+  }
+
+  // Images and videos come from single MediaStore.Files query, so they are streamed in one order of date taken.
+  // Rows are read from cursor one by one, so enumeration can be stopped between rows when cancelled is set.
+  private void queryLibrary(Context context, int itemsInChunk, double chunkTimeSec, boolean includeImages, boolean includeVideos,
+    boolean includeAlbumData, boolean compactIds, String whereClause, String[] whereArgs, AtomicBoolean cancelled, ChunkResultRunnable completion)
+    throws JSONException {
+
+    if (!includeImages && !includeVideos) {
+      completion.run(new ArrayList<JSONObject>(), 0, true, false);
+      return;
+    }
+
+    JSONObject columns = createLibraryColumns();
+
+    final Cursor cursor = openContentProviderCursor(context, FILES_CONTENT_URI, columns,
+      restrictToMediaTypes(whereClause, includeImages, includeVideos), whereArgs);
+
+    ArrayList<JSONObject> chunk = new ArrayList<JSONObject>();
+
+    long chunkStartTime = SystemClock.elapsedRealtime();
+    int chunkNum = 0;
+    boolean isCancelled = false;
 
-      chunk.add(queryResult);
+    try {
+
+      while (cursor.moveToNext()) {
+
+        if (cancelled != null && cancelled.get()) {
+          isCancelled = true;
+          break;
+        }
+
+        JSONObject queryResult = readLibraryItem(cursor, columns, includeAlbumData, compactIds);
+
+        chunk.add(queryResult);
+
+        if (!cursor.isLast() && ((itemsInChunk > 0 && chunk.size() == itemsInChunk) || (chunkTimeSec > 0 && (SystemClock.elapsedRealtime() - chunkStartTime) >= chunkTimeSec*1000))) {
+          completion.run(chunk, chunkNum, false, false);
+          chunkNum += 1;
+          chunk = new ArrayList<JSONObject>();
+          chunkStartTime = SystemClock.elapsedRealtime();
+        }
 
-      if (i == queryResults.size() - 1) { // Last item
-        completion.run(chunk, chunkNum, true);
-      } else if ((itemsInChunk > 0 && chunk.size() == itemsInChunk) || (chunkTimeSec > 0 && (SystemClock.elapsedRealtime() - chunkStartTime) >= chunkTimeSec*1000)) {
-        completion.run(chunk, chunkNum, false);
-        chunkNum += 1;
-        chunk = new ArrayList<JSONObject>();
-        chunkStartTime = SystemClock.elapsedRealtime();
       }
 
+    } finally {
+      cursor.close();
     }
 
+    // Last chunk is sent after the cursor is closed. When cancelled, it holds items read so far.
+    completion.run(chunk, chunkNum, true, isCancelled);
+
   }
 
   private String queryMimeType(Context context, int imageId) {
 
     Cursor cursor = context.getContentResolver().query(
-      MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-      new String[] { MediaStore.Images.ImageColumns.MIME_TYPE },
+      FILES_CONTENT_URI,
+      new String[] { MediaStore.MediaColumns.MIME_TYPE },
       MediaStore.MediaColumns._ID + "=?",
       new String[] {Integer.toString(imageId)}, null);
 
@@ -417,7 +1402,7 @@ public class PhotoLibraryService {
   }
 
   // From https://developer.android.com/training/displaying-bitmaps/load-bitmap.html
-  private static int calculateInSampleSize(
+  static int calculateInSampleSize(
 
     BitmapFactory.Options options, int reqWidth, int reqHeight) {
     // Raw height and width of image
@@ -444,23 +1429,181 @@ public class PhotoLibraryService {
 
   private static byte[] getJpegBytesFromBitmap(Bitmap bitmap, double quality) {
 
+    return getBytesFromBitmap(bitmap, FORMAT_JPEG, quality);
+
+  }
+
+  private static byte[] getBytesFromBitmap(Bitmap bitmap, String outputFormat, double quality) {
+
     ByteArrayOutputStream stream = new ByteArrayOutputStream();
-    bitmap.compress(Bitmap.CompressFormat.JPEG, (int)(quality * 100), stream);
+    bitmap.compress(toCompressFormat(outputFormat), (int)(quality * 100), stream);
 
     return stream.toByteArray();
 
   }
 
-  private static void copyStream(InputStream source, OutputStream target) throws IOException {
+  // Binary search for the highest quality, not above requested one, that fits into targetByteSize.
+  // If even the lowest quality does not fit, smallest result is returned.
+  private static byte[] getBytesFromBitmapWithinSize(Bitmap bitmap, String outputFormat, double quality, int targetByteSize) {
 
-    int bufferSize = 1024;
-    byte[] buffer = new byte[bufferSize];
+    Bitmap.CompressFormat compressFormat = toCompressFormat(outputFormat);
+    // Encoded image is rarely larger than raw pixels, so large targetByteSize does not reserve heap it never uses
+    ByteArrayOutputStream stream = new ByteArrayOutputStream((int) Math.min(targetByteSize, (long) bitmap.getWidth() * bitmap.getHeight() * 4));
 
-    int len;
-    while ((len = source.read(buffer)) != -1) {
-      target.write(buffer, 0, len);
+    int high = (int)(quality * 100);
+    bitmap.compress(compressFormat, high, stream);
+    if (compressFormat == Bitmap.CompressFormat.PNG || stream.size() <= targetByteSize) {
+      return stream.toByteArray();
+    }
+
+    byte[] best = null;
+    int low = 0;
+    high -= 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      stream.reset();
+      bitmap.compress(compressFormat, mid, stream);
+      if (stream.size() <= targetByteSize) {
+        best = stream.toByteArray();
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+
+    if (best == null) { // nothing fits, low is 0 here
+      stream.reset();
+      bitmap.compress(compressFormat, 0, stream);
+      best = stream.toByteArray();
+    }
+
+    return best;
+
+  }
+
+  // WEBP is lossless at quality 100 since API 30, which would defeat targetByteSize, so WEBP_LOSSY is used there
+  @SuppressWarnings("deprecation")
+  private static Bitmap.CompressFormat toCompressFormat(String outputFormat) {
+
+    if (FORMAT_WEBP.equals(outputFormat)) {
+      return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+    } else if (FORMAT_PNG.equals(outputFormat)) {
+      return Bitmap.CompressFormat.PNG;
+    }
+    return Bitmap.CompressFormat.JPEG;
+
+  }
+
+  private static final int COPY_BUFFER_SIZE = 256 * 1024;
+
+  // Copies through one large direct buffer, and closes the source
+  private static void copyChannel(ReadableByteChannel source, FileChannel target) throws IOException {
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+
+    try {
+      while (source.read(buffer) != -1) {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          target.write(buffer);
+        }
+        buffer.clear();
+      }
+    } finally {
+      source.close();
+    }
+
+  }
+
+  // File to file copy, lets the kernel move the bytes when possible
+  private static void transferFully(FileChannel source, FileChannel target) throws IOException {
+
+    long size = source.size();
+    long position = 0;
+    while (position < size) {
+      long transferred = source.transferTo(position, size - position, target);
+      if (transferred <= 0) {
+        throw new EOFException("Source file was truncated while copying"); // transferTo would return 0 forever
+      }
+      position += transferred;
+    }
+
+  }
+
+  private static final int BASE64_BUFFER_SIZE = 64 * 1024;
+
+  private static final byte BASE64_SKIP = -2;
+  private static final byte BASE64_INVALID = -1;
+  private static final byte[] BASE64_DECODE_TABLE = new byte[128];
+
+  static {
+    Arrays.fill(BASE64_DECODE_TABLE, BASE64_INVALID);
+    for (int i = 0; i < 26; i++) {
+      BASE64_DECODE_TABLE['A' + i] = (byte) i;
+      BASE64_DECODE_TABLE['a' + i] = (byte) (26 + i);
+    }
+    for (int i = 0; i < 10; i++) {
+      BASE64_DECODE_TABLE['0' + i] = (byte) (52 + i);
+    }
+    BASE64_DECODE_TABLE['+'] = BASE64_DECODE_TABLE['-'] = 62; // '-' and '_' are url-safe variants
+    BASE64_DECODE_TABLE['/'] = BASE64_DECODE_TABLE['_'] = 63;
+    BASE64_DECODE_TABLE[' '] = BASE64_DECODE_TABLE['\n'] = BASE64_DECODE_TABLE['\r'] = BASE64_DECODE_TABLE['\t'] = BASE64_SKIP;
+  }
+
+  // Decodes base64 that starts at offset of source into target, block by block.
+  // Uses fixed-size buffers, so memory used does not depend on size of data.
+  private static long decodeBase64(String source, int offset, OutputStream target) throws IOException {
+
+    char[] input = new char[BASE64_BUFFER_SIZE];
+    byte[] output = new byte[BASE64_BUFFER_SIZE];
+    int outputLength = 0;
+    long written = 0;
+
+    int bits = 0;
+    int bitCount = 0;
+
+    int length = source.length();
+    int position = offset;
+
+    decoding:
+    while (position < length) {
+      int blockLength = Math.min(input.length, length - position);
+      source.getChars(position, position + blockLength, input, 0);
+      position += blockLength;
+
+      for (int i = 0; i < blockLength; i++) {
+        char c = input[i];
+        if (c == '=') { // padding, the data ends here
+          break decoding;
+        }
+        int value = c < 128 ? BASE64_DECODE_TABLE[c] : BASE64_INVALID;
+        if (value == BASE64_SKIP) {
+          continue;
+        }
+        if (value == BASE64_INVALID) {
+          throw new IllegalArgumentException("The dataURL could not be decoded");
+        }
+
+        bits = (bits << 6) | value;
+        bitCount += 6;
+        if (bitCount >= 8) {
+          bitCount -= 8;
+          output[outputLength++] = (byte) (bits >> bitCount);
+          bits &= (1 << bitCount) - 1;
+          if (outputLength == output.length) {
+            target.write(output, 0, outputLength);
+            written += outputLength;
+            outputLength = 0;
+          }
+        }
+      }
     }
 
+    target.write(output, 0, outputLength);
+    written += outputLength;
+
+    return written;
+
   }
 
   private static byte[] readBytes(InputStream inputStream) throws IOException {
@@ -479,27 +1622,99 @@ public class PhotoLibraryService {
 
   }
 
-  // photoId is in format "imageid;imageurl;[swap]"
-  private static int getImageId(String photoId) {
-    return Integer.parseInt(photoId.split(";")[0]);
+  // photoId is in format "imageid;imageurl;[swap]", or just "imageid" when compact ids are used
+  static int getImageId(String photoId) {
+    int separator = photoId.indexOf(';');
+    return Integer.parseInt(separator < 0 ? photoId : photoId.substring(0, separator));
+  }
+
+  // Returns null for compact photoId, use resolveImagePath for it
+  static String getImageURL(String photoId) {
+    int separator = photoId.indexOf(';');
+    if (separator < 0) {
+      return null;
+    }
+    int end = photoId.indexOf(';', separator + 1);
+    return end < 0 ? photoId.substring(separator + 1) : photoId.substring(separator + 1, end);
+  }
+
+  // Path of image file for both photoId formats. Compact ids are resolved with MediaStore query, and cached.
+  private String resolveImagePath(Context context, String photoId) throws FileNotFoundException {
+
+    String imageURL = getImageURL(photoId);
+    if (imageURL != null) {
+      return imageURL;
+    }
+
+    return resolveMediaFile(context, photoId).path;
+
+  }
+
+  // Path and media type of library item, as MediaStore.Files has them. Media type is not in photoId, so both formats are queried, and cached.
+  private MediaFile resolveMediaFile(Context context, String photoId) throws FileNotFoundException {
+
+    int imageId = getImageId(photoId);
+
+    MediaFile mediaFile = mediaFileCache.get(imageId);
+    if (mediaFile != null) {
+      metrics.increment(PhotoLibraryMetrics.COUNTER_IMAGE_PATH_CACHE_HITS);
+      return mediaFile;
+    }
+    metrics.increment(PhotoLibraryMetrics.COUNTER_IMAGE_PATH_CACHE_MISSES);
+
+    Cursor cursor = context.getContentResolver().query(
+      FILES_CONTENT_URI,
+      new String[] { MediaStore.MediaColumns.DATA, MediaStore.Files.FileColumns.MEDIA_TYPE },
+      MediaStore.MediaColumns._ID + "=?",
+      new String[] { Integer.toString(imageId) }, null);
+
+    try {
+      if (cursor != null && cursor.moveToFirst() && cursor.getString(0) != null) {
+        mediaFile = new MediaFile(cursor.getString(0), cursor.getInt(1) == MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO);
+      }
+    } finally {
+      if (cursor != null) {
+        cursor.close();
+      }
+    }
+
+    if (mediaFile == null) {
+      throw new FileNotFoundException("Photo with id " + photoId + " not found in the library");
+    }
+
+    mediaFileCache.put(imageId, mediaFile);
+
+    return mediaFile;
+
   }
 
-  // photoId is in format "imageid;imageurl;[swap]"
-  private static String getImageURL(String photoId) {
-    return photoId.split(";")[1];
+  private static class MediaFile {
+
+    final String path;
+    final boolean isVideo;
+
+    MediaFile(String path, boolean isVideo) {
+      this.path = path;
+      this.isVideo = isVideo;
+    }
+
   }
 
-  private static int getImageOrientation(File imageFile) throws IOException {
+  private int getImageOrientation(File imageFile) throws IOException {
+
+    long start = PhotoLibraryMetrics.start();
 
     ExifInterface exif = new ExifInterface(imageFile.getAbsolutePath());
     int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
 
+    metrics.recordStage(PhotoLibraryMetrics.STAGE_EXIF, start);
+
     return orientation;
 
   }
 
   // see http://www.daveperrett.com/articles/2012/07/28/exif-orientation-handling-is-a-ghetto/
-  private static Bitmap rotateImage(Bitmap source, int orientation) {
+  static Bitmap rotateImage(Bitmap source, int orientation) {
 
     Matrix matrix = new Matrix();
 
@@ -539,7 +1754,7 @@ public class PhotoLibraryService {
   }
 
   // Returns true if orientation rotates image by 90 or 270 degrees.
-  private static boolean isOrientationSwapsDimensions(int orientation) {
+  static boolean isOrientationSwapsDimensions(int orientation) {
     return orientation == ExifInterface.ORIENTATION_TRANSPOSE // 5
       || orientation == ExifInterface.ORIENTATION_ROTATE_90 // 6
       || orientation == ExifInterface.ORIENTATION_TRANSVERSE // 7
@@ -554,28 +1769,66 @@ public class PhotoLibraryService {
     return albumDirectory;
   }
 
-  private File getImageFileName(File albumDirectory, String extension) {
+  private File getImageFileName(File albumDirectory, String extension) throws IOException {
     Calendar calendar = Calendar.getInstance();
     String dateStr = calendar.get(Calendar.YEAR) +
       "-" + calendar.get(Calendar.MONTH) +
       "-" + calendar.get(Calendar.DAY_OF_MONTH);
-    int i = 1;
+
+    // Album directory is listed once per day prefix, next names come from the counter
+    String counterKey = albumDirectory.getAbsolutePath() + "/" + dateStr;
+    AtomicInteger counter = fileNameCounters.get(counterKey);
+    if (counter == null) {
+      AtomicInteger newCounter = new AtomicInteger(findNextFileIndex(albumDirectory, dateStr + "-"));
+      counter = fileNameCounters.putIfAbsent(counterKey, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+
     File result;
     do {
-      String fileName = dateStr + "-" + i + extension;
-      i += 1;
+      String fileName = dateStr + "-" + counter.getAndIncrement() + extension;
       result = new File(albumDirectory, fileName);
-    } while (result.exists());
+    } while (!result.createNewFile()); // atomically claims the name, fails only if file was created by someone else
     return result;
   }
 
+  private static int findNextFileIndex(File albumDirectory, String prefix) {
+    int next = 1;
+    String[] fileNames = albumDirectory.list();
+    if (fileNames == null) {
+      return next;
+    }
+    for (String fileName : fileNames) {
+      if (!fileName.startsWith(prefix)) {
+        continue;
+      }
+      int end = prefix.length();
+      while (end < fileName.length() && Character.isDigit(fileName.charAt(end))) {
+        end++;
+      }
+      if (end == prefix.length()) {
+        continue;
+      }
+      try {
+        next = Math.max(next, Integer.parseInt(fileName.substring(prefix.length(), end)) + 1);
+      } catch (NumberFormatException e) {
+        // Not ours
+      }
+    }
+    return next;
+  }
+
   private void addFileToMediaLibrary(Context context, File file, final FilePathRunnable completion) {
 
     String filePath = file.getAbsolutePath();
+    final long scanStart = PhotoLibraryMetrics.start();
 
     MediaScannerConnection.scanFile(context, new String[]{filePath}, null, new MediaScannerConnection.OnScanCompletedListener() {
       @Override
       public void onScanCompleted(String path, Uri uri) {
+        metrics.recordStage(PhotoLibraryMetrics.STAGE_SCAN, scanStart);
         completion.run(path);
       }
     });
@@ -595,6 +1848,18 @@ public class PhotoLibraryService {
     throws IOException, URISyntaxException {
 
     File albumDirectory = makeAlbumInPhotoLibrary(album);
+
+    long writeStart = PhotoLibraryMetrics.start();
+    File targetFile = writeMediaFile(cordova, url, albumDirectory, mimeToExtension);
+    metrics.recordStage(PhotoLibraryMetrics.STAGE_WRITE, writeStart);
+
+    addFileToMediaLibrary(context, targetFile, completion);
+
+  }
+
+  File writeMediaFile(CordovaInterface cordova, String url, File albumDirectory, Map<String, String> mimeToExtension)
+    throws IOException, URISyntaxException {
+
     File targetFile;
 
     if (url.startsWith("data:")) {
@@ -606,13 +1871,6 @@ public class PhotoLibraryService {
       String mime = matcher.group(2);
       int dataPos = matcher.end();
 
-      String base64 = url.substring(dataPos); // Use substring and not replace to keep memory footprint small
-      byte[] decoded = Base64.decode(base64, Base64.DEFAULT);
-
-      if (decoded == null) {
-        throw new IllegalArgumentException("The dataURL could not be decoded");
-      }
-
       String extension = mimeToExtension.get(mime);
       if (extension == null) {
         extension = "." + mime;
@@ -620,43 +1878,69 @@ public class PhotoLibraryService {
 
       targetFile = getImageFileName(albumDirectory, extension);
 
-      FileOutputStream os = new FileOutputStream(targetFile);
-
-      os.write(decoded);
-
-      os.flush();
-      os.close();
+      // Payload is decoded directly from url into the file, so no copy of whole media is held in memory
+      boolean written = false;
+      try {
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(targetFile), BASE64_BUFFER_SIZE);
+        try {
+          decodeBase64(url, dataPos, os);
+        } finally {
+          os.close();
+        }
+        written = true;
+      } finally {
+        if (!written) { // Invalid payload or full disk, partial file should not appear in the album
+          targetFile.delete();
+        }
+      }
 
     } else {
 
       String extension = url.contains(".") ? url.substring(url.lastIndexOf(".")) : "";
       targetFile = getImageFileName(albumDirectory, extension);
 
-      InputStream is;
-      FileOutputStream os = new FileOutputStream(targetFile);
-
-      if(url.startsWith("file:///android_asset/")) {
-        String assetUrl = url.replace("file:///android_asset/", "");
-        is = cordova.getActivity().getApplicationContext().getAssets().open(assetUrl);
-      } else {
-        is = new URL(url).openStream();
+      boolean written = false;
+      try {
+        FileChannel target = new FileOutputStream(targetFile).getChannel();
+        try {
+          if (url.startsWith("file:///android_asset/")) {
+            String assetUrl = url.replace("file:///android_asset/", "");
+            copyChannel(Channels.newChannel(cordova.getActivity().getApplicationContext().getAssets().open(assetUrl)), target);
+          } else if (url.startsWith("file:")) {
+            FileChannel source = new FileInputStream(new File(new URI(url))).getChannel();
+            try {
+              transferFully(source, target);
+            } finally {
+              source.close();
+            }
+          } else {
+            copyChannel(Channels.newChannel(new URL(url).openStream()), target);
+          }
+        } finally {
+          target.close();
+        }
+        written = true;
+      } finally {
+        if (!written) {
+          targetFile.delete();
+        }
       }
 
-      copyStream(is, os);
-
-      os.flush();
-      os.close();
-      is.close();
-
     }
 
-    addFileToMediaLibrary(context, targetFile, completion);
+    return targetFile;
 
   }
 
   public interface ChunkResultRunnable {
 
-    void run(ArrayList<JSONObject> chunk, int chunkNum, boolean isLastChunk);
+    void run(ArrayList<JSONObject> chunk, int chunkNum, boolean isLastChunk, boolean isCancelled);
+
+  }
+
+  public interface ExportProgressRunnable {
+
+    void run(JSONObject file, int completed, int total);
 
   }
 
@@ -672,4 +1956,10 @@ public class PhotoLibraryService {
 
   }
 
+  public interface JSONArrayRunnable {
+
+    void run(JSONArray result);
+
+  }
+
 }
@@ -0,0 +1,416 @@
+package com.terikon.cordova.photolibrary;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Process;
+import android.provider.MediaStore;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Index of geotagged photos, so maps can get photos and clusters of visible region without loading whole library to javascript.
+// Photos are kept in primitive arrays sorted by Z-order key of their web mercator cell, so photos of any map tile
+// are a contiguous range found with binary search. Only the first query waits for the index to be built. After the library changes,
+// the index is rebuilt on background thread, and queries are answered from the previous one until the new one is ready.
+public class PhotoLibrarySpatialIndex {
+
+  public static final int MAX_ZOOM = 24; // bits per axis of cell keys, cells of ~2.4m at equator
+
+  private static final double MAX_LATITUDE = 85.05112878; // web mercator does not reach the poles
+
+  private final PhotoLibraryService service;
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      return new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+          runnable.run();
+        }
+      }, "PhotoLibrarySpatialIndex");
+    }
+  });
+
+  private volatile Grid grid = null; // latest built, written under this lock
+
+  // Library version of the last queued rebuild, -1 when there is none
+  private final AtomicLong requestedVersion = new AtomicLong(-1);
+
+  public PhotoLibrarySpatialIndex(PhotoLibraryService service) {
+    this.service = service;
+  }
+
+  // bbox is {south, west, north, east} in degrees, west > east crosses antimeridian.
+  // Returns [{id, latitude, longitude}] of photos inside bbox, most recent first, at most limit of them when limit is positive.
+  public JSONArray queryRegion(Context context, JSONObject bbox, int limit, boolean compactIds) throws JSONException {
+
+    final Grid grid = getGrid(context);
+    final List<Integer> indexes = new ArrayList<Integer>();
+
+    visitRegion(grid, new Region(bbox), new Visitor() {
+      @Override
+      public void visit(int index) {
+        indexes.add(index);
+      }
+    });
+
+    Collections.sort(indexes, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return grid.recency[a] - grid.recency[b];
+      }
+    });
+
+    JSONArray result = new JSONArray();
+    for (int index : limit > 0 && limit < indexes.size() ? indexes.subList(0, limit) : indexes) {
+      JSONObject item = new JSONObject();
+      item.put("id", grid.photoId(index, compactIds));
+      item.put("latitude", grid.latitudes[index]);
+      item.put("longitude", grid.longitudes[index]);
+      result.put(item);
+    }
+    return result;
+
+  }
+
+  // Groups photos inside bbox by web mercator tiles of given zoom.
+  // Returns [{id, count, latitude, longitude}] per non empty tile, where id is the most recent photo of the tile,
+  // and latitude, longitude is center of its photos.
+  public JSONArray clusterRegion(Context context, JSONObject bbox, int zoom, boolean compactIds) throws JSONException {
+
+    final Grid grid = getGrid(context);
+    final int shift = 2 * (MAX_ZOOM - Math.max(0, Math.min(MAX_ZOOM, zoom)));
+    final Map<Long, Cluster> clusters = new LinkedHashMap<Long, Cluster>();
+
+    visitRegion(grid, new Region(bbox), new Visitor() {
+      @Override
+      public void visit(int index) {
+        Long tile = grid.keys[index] >>> shift;
+        Cluster cluster = clusters.get(tile);
+        if (cluster == null) {
+          cluster = new Cluster(index);
+          clusters.put(tile, cluster);
+        }
+        cluster.add(grid, index);
+      }
+    });
+
+    JSONArray result = new JSONArray();
+    for (Cluster cluster : clusters.values()) {
+      JSONObject item = new JSONObject();
+      item.put("id", grid.photoId(cluster.representative, compactIds));
+      item.put("count", cluster.count);
+      item.put("latitude", cluster.latitudeSum / cluster.count);
+      item.put("longitude", cluster.longitudeSum / cluster.count);
+      result.put(item);
+    }
+    return result;
+
+  }
+
+  // Drops the index under memory pressure, it is rebuilt by next query
+  public synchronized void clear() {
+    grid = null;
+    requestedVersion.set(-1);
+  }
+
+  // Stale grid is returned while its rebuild is queued, so map queries never wait for a rebuild of a library that changed
+  private Grid getGrid(Context context) throws JSONException {
+
+    long version = service.getLibraryVersion(); // before the query, so changes during build are picked by next query
+
+    Grid grid = this.grid;
+    if (grid == null) {
+      synchronized (this) {
+        if (this.grid == null) {
+          this.grid = build(context, version); // Nothing to answer from yet
+        }
+        return this.grid;
+      }
+    }
+
+    if (grid.version != version) {
+      requestRebuild(context.getApplicationContext(), version);
+    }
+
+    return grid;
+
+  }
+
+  private void requestRebuild(final Context context, final long version) {
+
+    if (requestedVersion.getAndSet(version) == version) {
+      return; // Rebuild of this version is already queued, running or done
+    }
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (requestedVersion.get() != version) {
+          return; // Library changed again, and newer rebuild is queued
+        }
+        try {
+          Grid grid = build(context, version);
+          synchronized (PhotoLibrarySpatialIndex.this) {
+            if (PhotoLibrarySpatialIndex.this.grid == null || PhotoLibrarySpatialIndex.this.grid.version < version) {
+              PhotoLibrarySpatialIndex.this.grid = grid;
+            }
+          }
+        } catch (Exception e) {
+          e.printStackTrace(); // E.g. permission was revoked
+          requestedVersion.compareAndSet(version, -1); // so next query tries again
+        }
+      }
+    });
+
+  }
+
+  private Grid build(Context context, long version) throws JSONException {
+
+    JSONObject columns = new JSONObject() {{
+      put("id", MediaStore.Images.Media._ID);
+      put("latitude", MediaStore.Images.ImageColumns.LATITUDE);
+      put("longitude", MediaStore.Images.ImageColumns.LONGITUDE);
+      put("path", MediaStore.MediaColumns.DATA);
+    }};
+
+    // 0,0 is what many cameras write when they have no location
+    String whereClause = MediaStore.Images.ImageColumns.LATITUDE + " IS NOT NULL AND "
+      + MediaStore.Images.ImageColumns.LONGITUDE + " IS NOT NULL AND NOT ("
+      + MediaStore.Images.ImageColumns.LATITUDE + " = 0 AND " + MediaStore.Images.ImageColumns.LONGITUDE + " = 0)";
+
+    Cursor cursor = service.openContentProviderCursor(context, MediaStore.Images.Media.EXTERNAL_CONTENT_URI, columns, whereClause, null);
+    try {
+
+      int count = cursor.getCount();
+      long[] keys = new long[count];
+      long[] ids = new long[count];
+      double[] latitudes = new double[count];
+      double[] longitudes = new double[count];
+      String[] paths = new String[count];
+
+      int idColumn = cursor.getColumnIndex(MediaStore.Images.Media._ID);
+      int latitudeColumn = cursor.getColumnIndex(MediaStore.Images.ImageColumns.LATITUDE);
+      int longitudeColumn = cursor.getColumnIndex(MediaStore.Images.ImageColumns.LONGITUDE);
+      int pathColumn = cursor.getColumnIndex(MediaStore.MediaColumns.DATA);
+
+      // Cursor is sorted by date taken, most recent first, so position is recency
+      for (int i = 0; i < count && cursor.moveToNext(); i++) {
+        ids[i] = cursor.getLong(idColumn);
+        latitudes[i] = cursor.getDouble(latitudeColumn);
+        longitudes[i] = cursor.getDouble(longitudeColumn);
+        paths[i] = cursor.getString(pathColumn);
+        keys[i] = key(cell(mercatorX(longitudes[i])), cell(mercatorY(latitudes[i])));
+      }
+
+      return new Grid(version, keys, ids, latitudes, longitudes, paths);
+
+    } finally {
+      cursor.close();
+    }
+
+  }
+
+  // Visits photos inside region. Region is covered by at most 2x2 tiles of the largest zoom that fits it,
+  // and photos of each tile are read from their range of sorted keys.
+  private static void visitRegion(Grid grid, Region region, Visitor visitor) {
+
+    double span = Math.max(region.spanX(), region.bottom - region.top);
+    int zoom = span > 0 ? (int) Math.floor(-Math.log(span) / Math.log(2)) : MAX_ZOOM;
+    zoom = Math.max(0, Math.min(MAX_ZOOM, zoom));
+
+    int tiles = 1 << zoom;
+    int shift = 2 * (MAX_ZOOM - zoom);
+
+    int left = tile(region.left, zoom);
+    int right = tile(region.right, zoom);
+    int top = tile(region.top, zoom);
+    int bottom = tile(region.bottom, zoom);
+
+    int columns = region.left <= region.right ? right - left + 1 : (right - left + tiles) % tiles + 1;
+
+    for (int column = 0; column < columns; column++) {
+      int x = (left + column) % tiles;
+      for (int y = top; y <= bottom; y++) {
+        long tileKey = key(x, y);
+        int end = lowerBound(grid.keys, (tileKey + 1) << shift);
+        for (int index = lowerBound(grid.keys, tileKey << shift); index < end; index++) {
+          if (region.contains(grid.latitudes[index], grid.longitudes[index])) {
+            visitor.visit(index);
+          }
+        }
+      }
+    }
+
+  }
+
+  private static int lowerBound(long[] keys, long key) {
+    int low = 0;
+    int high = keys.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (keys[middle] < key) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  // Web mercator coordinates, 0..1 from west to east and from north to south
+  static double mercatorX(double longitude) {
+    return Math.max(0, Math.min(1, (longitude + 180) / 360));
+  }
+
+  static double mercatorY(double latitude) {
+    double sin = Math.sin(Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude))));
+    return Math.max(0, Math.min(1, 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI)));
+  }
+
+  private static int cell(double coordinate) {
+    return tile(coordinate, MAX_ZOOM);
+  }
+
+  private static int tile(double coordinate, int zoom) {
+    int tiles = 1 << zoom;
+    return Math.min(tiles - 1, (int) (coordinate * tiles));
+  }
+
+  // Z-order key, interleaves bits of x and y, so that key of tile at lower zoom is a prefix of keys of its cells
+  static long key(int x, int y) {
+    return spread(x) | (spread(y) << 1);
+  }
+
+  private static long spread(int value) {
+    long result = 0;
+    for (int bit = 0; bit < MAX_ZOOM; bit++) {
+      result |= ((long) (value >>> bit) & 1) << (2 * bit);
+    }
+    return result;
+  }
+
+  private interface Visitor {
+    void visit(int index);
+  }
+
+  private static class Region {
+
+    final double south, west, north, east;
+    final double left, right, top, bottom;
+
+    Region(JSONObject bbox) throws JSONException {
+      south = bbox.getDouble("south");
+      west = bbox.getDouble("west");
+      north = bbox.getDouble("north");
+      east = bbox.getDouble("east");
+      left = mercatorX(west);
+      right = mercatorX(east);
+      top = mercatorY(north);
+      bottom = mercatorY(south);
+    }
+
+    double spanX() {
+      return west <= east ? right - left : 1 - left + right;
+    }
+
+    boolean contains(double latitude, double longitude) {
+      if (latitude < south || latitude > north) {
+        return false;
+      }
+      return west <= east ? longitude >= west && longitude <= east : longitude >= west || longitude <= east;
+    }
+
+  }
+
+  private static class Cluster {
+
+    int representative;
+    int count = 0;
+    double latitudeSum = 0;
+    double longitudeSum = 0;
+
+    Cluster(int representative) {
+      this.representative = representative;
+    }
+
+    void add(Grid grid, int index) {
+      count += 1;
+      latitudeSum += grid.latitudes[index];
+      longitudeSum += grid.longitudes[index];
+      if (grid.recency[index] < grid.recency[representative]) {
+        representative = index;
+      }
+    }
+
+  }
+
+  // Geotagged photos at the moment of build, sorted by key
+  static class Grid {
+
+    final long version; // library version grid was built from
+    final long[] keys;
+    final long[] ids;
+    final double[] latitudes;
+    final double[] longitudes;
+    final int[] recency; // position in library, 0 is the most recent
+    final String[] paths;
+
+    Grid(long version, long[] keys, long[] ids, double[] latitudes, double[] longitudes, String[] paths) {
+
+      this.version = version;
+      int count = keys.length;
+
+      Integer[] order = new Integer[count];
+      for (int i = 0; i < count; i++) {
+        order[i] = i;
+      }
+      final long[] unsortedKeys = keys;
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return unsortedKeys[a] < unsortedKeys[b] ? -1 : (unsortedKeys[a] == unsortedKeys[b] ? 0 : 1);
+        }
+      });
+
+      this.keys = new long[count];
+      this.ids = new long[count];
+      this.latitudes = new double[count];
+      this.longitudes = new double[count];
+      this.recency = new int[count];
+      this.paths = new String[count];
+
+      for (int i = 0; i < count; i++) {
+        int from = order[i];
+        this.keys[i] = keys[from];
+        this.ids[i] = ids[from];
+        this.latitudes[i] = latitudes[from];
+        this.longitudes[i] = longitudes[from];
+        this.recency[i] = from;
+        this.paths[i] = paths[from];
+      }
+
+    }
+
+    String photoId(int index, boolean compactIds) {
+      return compactIds ? Long.toString(ids[index]) : ids[index] + ";" + paths[index];
+    }
+
+  }
+
+}
@@ -0,0 +1,205 @@
+package com.terikon.cordova.photolibrary;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.MediaStore;
+import android.util.LruCache;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Locale;
+
+// Counts of photos per day, month or year, for fast scroll timelines that should not load whole library to javascript.
+// Computed in one pass over creation date column only, of same Files query as getLibrary, and cached until the library changes.
+public class PhotoLibraryTimeline {
+
+  public static final String GRANULARITY_DAY = "day";
+  public static final String GRANULARITY_MONTH = "month";
+  public static final String GRANULARITY_YEAR = "year";
+
+  private static final int CACHE_SIZE = 16; // timelines, for combinations of granularity and filters
+
+  private final PhotoLibraryService service;
+
+  private final LruCache<String, CachedTimeline> cache = new LruCache<String, CachedTimeline>(CACHE_SIZE);
+
+  public PhotoLibraryTimeline(PhotoLibraryService service) {
+    this.service = service;
+  }
+
+  public static boolean isSupportedGranularity(String granularity) {
+    return GRANULARITY_DAY.equals(granularity) || GRANULARITY_MONTH.equals(granularity) || GRANULARITY_YEAR.equals(granularity);
+  }
+
+  // filters are optional {albumId, from, to, includeImages, includeVideos}, from and to are milliseconds since epoch, to is exclusive.
+  // includeImages and includeVideos default to true and false, as in getLibrary, so counts match items it returns.
+  // Returns {granularity, buckets, counts}, where buckets are "yyyy-MM-dd", "yyyy-MM" or "yyyy" in device time zone, most recent first.
+  public JSONObject getTimeline(Context context, String granularity, JSONObject filters) throws JSONException {
+
+    String albumId = filters != null && filters.has("albumId") ? filters.getString("albumId") : null;
+    Long from = filters != null && filters.has("from") ? filters.getLong("from") : null;
+    Long to = filters != null && filters.has("to") ? filters.getLong("to") : null;
+    boolean includeImages = filters == null || filters.optBoolean("includeImages", true);
+    boolean includeVideos = filters != null && filters.optBoolean("includeVideos", false);
+
+    String key = granularity + ";" + albumId + ";" + from + ";" + to + ";" + includeImages + ";" + includeVideos;
+    long version = service.getLibraryVersion(); // before the query, so changes during it are picked by next call
+
+    CachedTimeline cached = cache.get(key);
+    if (cached != null && cached.version == version) {
+      return cached.timeline;
+    }
+
+    StringBuilder whereClause = new StringBuilder();
+    ArrayList<String> whereArgs = new ArrayList<String>();
+    if (albumId != null) {
+      appendCondition(whereClause, whereArgs, MediaStore.Images.ImageColumns.BUCKET_ID + " = ?", albumId);
+    }
+    if (from != null) {
+      appendCondition(whereClause, whereArgs, PhotoLibraryService.CREATION_DATE_COLUMN + " >= ?", Long.toString(from));
+    }
+    if (to != null) {
+      appendCondition(whereClause, whereArgs, PhotoLibraryService.CREATION_DATE_COLUMN + " < ?", Long.toString(to));
+    }
+
+    JSONObject timeline = computeTimeline(context, granularity, includeImages, includeVideos,
+      whereClause.length() > 0 ? whereClause.toString() : null,
+      whereArgs.size() > 0 ? whereArgs.toArray(new String[whereArgs.size()]) : null);
+
+    cache.put(key, new CachedTimeline(version, timeline));
+
+    return timeline;
+
+  }
+
+  public void clear() {
+    cache.evictAll();
+  }
+
+  private JSONObject computeTimeline(Context context, String granularity, boolean includeImages, boolean includeVideos,
+    String whereClause, String[] whereArgs) throws JSONException {
+
+    JSONObject columns = new JSONObject() {{
+      put("date.creationDate", PhotoLibraryService.CREATION_DATE_COLUMN);
+    }};
+
+    int field = GRANULARITY_DAY.equals(granularity) ? Calendar.DAY_OF_MONTH : (GRANULARITY_MONTH.equals(granularity) ? Calendar.MONTH : Calendar.YEAR);
+
+    JSONArray buckets = new JSONArray();
+    JSONArray counts = new JSONArray();
+
+    Calendar calendar = Calendar.getInstance();
+
+    // Bounds of current bucket. Cursor is sorted by date taken, so calendar is used only when a row leaves the bucket.
+    long bucketStart = Long.MAX_VALUE;
+    long bucketEnd = Long.MIN_VALUE;
+    int count = 0;
+    String lastBucket = null;
+
+    JSONObject result = new JSONObject();
+    result.put("granularity", granularity);
+    result.put("buckets", buckets);
+    result.put("counts", counts);
+
+    if (!includeImages && !includeVideos) {
+      return result; // Nothing to count
+    }
+
+    Cursor cursor = service.openContentProviderCursor(context, PhotoLibraryService.FILES_CONTENT_URI, columns,
+      PhotoLibraryService.restrictToMediaTypes(whereClause, includeImages, includeVideos), whereArgs);
+    try {
+
+      int dateTakenColumn = cursor.getColumnIndex(PhotoLibraryService.CREATION_DATE_COLUMN);
+
+      while (cursor.moveToNext()) {
+
+        long dateTaken = cursor.getLong(dateTakenColumn); // 0 when unknown, as creationDate of getLibrary
+
+        if (dateTaken < bucketStart || dateTaken >= bucketEnd) {
+
+          calendar.setTimeInMillis(dateTaken);
+          truncate(calendar, field);
+          bucketStart = calendar.getTimeInMillis();
+          String bucket = formatBucket(calendar, field);
+          calendar.add(field, 1);
+          bucketEnd = calendar.getTimeInMillis();
+
+          // Where midnight is skipped by daylight saving, day starts later than truncated time, and its first hour comes as same bucket
+          if (!bucket.equals(lastBucket)) {
+            if (count > 0) {
+              counts.put(count);
+            }
+            count = 0;
+            buckets.put(bucket);
+            lastBucket = bucket;
+          }
+
+        }
+
+        count += 1;
+
+      }
+
+    } finally {
+      cursor.close();
+    }
+
+    if (count > 0) {
+      counts.put(count);
+    }
+
+    return result;
+
+  }
+
+  private static void appendCondition(StringBuilder whereClause, ArrayList<String> whereArgs, String condition, String arg) {
+    if (whereClause.length() > 0) {
+      whereClause.append(" AND ");
+    }
+    whereClause.append(condition);
+    whereArgs.add(arg);
+  }
+
+  // Sets calendar to start of its day, month or year
+  private static void truncate(Calendar calendar, int field) {
+    calendar.set(Calendar.HOUR_OF_DAY, 0);
+    calendar.set(Calendar.MINUTE, 0);
+    calendar.set(Calendar.SECOND, 0);
+    calendar.set(Calendar.MILLISECOND, 0);
+    if (field != Calendar.DAY_OF_MONTH) {
+      calendar.set(Calendar.DAY_OF_MONTH, 1);
+    }
+    if (field == Calendar.YEAR) {
+      calendar.set(Calendar.MONTH, Calendar.JANUARY);
+    }
+  }
+
+  private static String formatBucket(Calendar calendar, int field) {
+    int year = calendar.get(Calendar.YEAR);
+    int month = calendar.get(Calendar.MONTH) + 1;
+    int day = calendar.get(Calendar.DAY_OF_MONTH);
+    if (field == Calendar.DAY_OF_MONTH) {
+      return String.format(Locale.US, "%04d-%02d-%02d", year, month, day);
+    } else if (field == Calendar.MONTH) {
+      return String.format(Locale.US, "%04d-%02d", year, month);
+    }
+    return String.format(Locale.US, "%04d", year);
+  }
+
+  private static class CachedTimeline {
+
+    final long version;
+    final JSONObject timeline;
+
+    CachedTimeline(long version, JSONObject timeline) {
+      this.version = version;
+      this.timeline = timeline;
+    }
+
+  }
+
+}
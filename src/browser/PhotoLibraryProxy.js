@@ -6,13 +6,21 @@ var photoLibraryProxy = {
 
   getLibrary: function (success, error, [options]) {
 
+  let sessionId = options.sessionId;
+  if (sessionId) {
+    librarySessions.set(sessionId, { cancelled: false });
+  }
+
   let processFiles = (chunkFiles, filesElement) => {
-      files2Library(chunkFiles, options.includeAlbumData, options.itemsInChunk, options.chunkTimeSec, (library, chunkNum, isLastChunk) => {
+      files2Library(chunkFiles, options.includeAlbumData, options.itemsInChunk, options.chunkTimeSec, sessionId, (library, chunkNum, isLastChunk, isCancelled) => {
         if (filesElement && isLastChunk) {
           removeFilesElement(filesElement);
           files = null;
         }
-        success({ library: library, chunkNum: chunkNum, isLastChunk: isLastChunk }, {keepCallback: !isLastChunk});
+        if (isLastChunk) {
+          librarySessions.delete(sessionId);
+        }
+        success({ library: library, chunkNum: chunkNum, isLastChunk: isLastChunk, isCancelled: isCancelled }, {keepCallback: !isLastChunk});
       });
     };
 
@@ -37,6 +45,16 @@ var photoLibraryProxy = {
 
   },
 
+  cancelLibrary: function (success, error, [sessionId]) {
+    let session = librarySessions.get(sessionId);
+    if (session) {
+      session.cancelled = true;
+    }
+    setTimeout(() => {
+      success(!!session);
+    }, 0);
+  },
+
   getAlbums: function (success, error) {
     setTimeout(() => {
       success( ['browser'] );
@@ -72,7 +90,7 @@ var photoLibraryProxy = {
     }
     //let libraryItem = staticItem.libraryItem;
 
-    let {thumbnailWidth, thumbnailHeight, quality} = options;
+    let {thumbnailWidth, thumbnailHeight, quality, outputFormat} = options;
 
     readDataURLAsImage(staticItem.dataURL).then(image => {
       let canvas = document.createElement('canvas');
@@ -82,7 +100,7 @@ var photoLibraryProxy = {
       context.drawImage(image, 0, 0, thumbnailWidth, thumbnailHeight);
       canvas.toBlob((blob) => {
         success({ data: blob, mimeType: blob.type });
-      }, 'image/jpeg', quality);
+      }, 'image/' + (outputFormat || 'jpeg'), quality);
     });
 
   },
@@ -134,6 +152,7 @@ var counter = 0;
 
 var files = null; // files are stored, so multiple calls to getLibrary won't require multiple files selections
 var idCache = {}; // cache of ids
+var librarySessions = new Map(); // getLibrary sessions that can be cancelled, by sessionId
 
 function checkSupported() {
   // Check for the various File API support.
@@ -184,7 +203,7 @@ function readDataURLAsImage(dataURL) {
   });
 }
 
-function files2Library(files, includeAlbumData, itemsInChunk, chunkTimeSec, success) {
+function files2Library(files, includeAlbumData, itemsInChunk, chunkTimeSec, sessionId, success) {
 
   let chunk = [];
   let chunkStartTime = new Date().getTime();
@@ -192,6 +211,13 @@ function files2Library(files, includeAlbumData, itemsInChunk, chunkTimeSec, succ
 
   async.eachOfSeries(files, (file, index, done) => {
 
+    let session = librarySessions.get(sessionId);
+    if (session && session.cancelled) {
+      success(chunk, chunkNum, true, true);
+      done(true); // stops the iteration
+      return;
+    }
+
     readFileAsDataURL(file)
       .then(dataURL => {
         return readDataURLAsImage(dataURL).then(image => {
@@ -226,9 +252,9 @@ function files2Library(files, includeAlbumData, itemsInChunk, chunkTimeSec, succ
         chunk.push(libraryItem);
 
         if (index === files.length - 1) {
-          success(chunk, chunkNum, true);
+          success(chunk, chunkNum, true, false);
         } else if ((itemsInChunk > 0 && chunk.length === itemsInChunk) || (chunkTimeSec > 0 && (new Date().getTime() - chunkStartTime) >= chunkTimeSec*1000)) {
-          success(chunk, chunkNum, false);
+          success(chunk, chunkNum, false, false);
           chunkNum += 1;
           chunk = [];
           chunkStartTime = new Date().getTime();
@@ -0,0 +1,59 @@
+package org.apache.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+// Compile-time shim of cordova-android API used by the plugin, see README.md of the benchmark module.
+// Keeps the last result, so benchmarks can consume it.
+public class CallbackContext {
+
+  private final String callbackId;
+  private volatile PluginResult lastResult;
+  private volatile boolean finished;
+
+  public CallbackContext(String callbackId) {
+    this.callbackId = callbackId;
+  }
+
+  public String getCallbackId() {
+    return callbackId;
+  }
+
+  public boolean isFinished() {
+    return finished;
+  }
+
+  public PluginResult getLastResult() {
+    return lastResult;
+  }
+
+  public void sendPluginResult(PluginResult pluginResult) {
+    lastResult = pluginResult;
+    finished = !pluginResult.getKeepCallback();
+  }
+
+  public void success() {
+    sendPluginResult(new PluginResult(PluginResult.Status.OK));
+  }
+
+  public void success(JSONObject message) {
+    sendPluginResult(new PluginResult(PluginResult.Status.OK, message));
+  }
+
+  public void success(JSONArray message) {
+    sendPluginResult(new PluginResult(PluginResult.Status.OK, message));
+  }
+
+  public void success(String message) {
+    sendPluginResult(new PluginResult(PluginResult.Status.OK, message));
+  }
+
+  public void error(String message) {
+    sendPluginResult(new PluginResult(PluginResult.Status.ERROR, message));
+  }
+
+  public void error(JSONObject message) {
+    sendPluginResult(new PluginResult(PluginResult.Status.ERROR, message));
+  }
+
+}
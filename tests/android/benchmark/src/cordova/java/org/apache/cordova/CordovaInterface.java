@@ -0,0 +1,18 @@
+package org.apache.cordova;
+
+import android.app.Activity;
+
+import java.util.concurrent.ExecutorService;
+
+// Compile-time shim of cordova-android API used by the plugin, see README.md of the benchmark module
+public interface CordovaInterface {
+
+  Activity getActivity();
+
+  ExecutorService getThreadPool();
+
+  boolean hasPermission(String permission);
+
+  void requestPermissions(CordovaPlugin plugin, int requestCode, String[] permissions);
+
+}
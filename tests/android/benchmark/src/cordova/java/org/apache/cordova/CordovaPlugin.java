@@ -0,0 +1,69 @@
+package org.apache.cordova;
+
+import android.content.res.Configuration;
+import android.net.Uri;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+// Compile-time shim of cordova-android API used by the plugin, see README.md of the benchmark module
+public class CordovaPlugin {
+
+  public CordovaWebView webView;
+  public CordovaInterface cordova;
+
+  public final void privateInitialize(CordovaInterface cordova, CordovaWebView webView) {
+    this.cordova = cordova;
+    this.webView = webView;
+    pluginInitialize();
+  }
+
+  protected void pluginInitialize() {
+  }
+
+  public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
+    return false;
+  }
+
+  public void onPause(boolean multitasking) {
+  }
+
+  public void onResume(boolean multitasking) {
+  }
+
+  public void onDestroy() {
+  }
+
+  public void onReset() {
+  }
+
+  public void onConfigurationChanged(Configuration newConfig) {
+  }
+
+  public Uri remapUri(Uri uri) {
+    return null;
+  }
+
+  public CordovaResourceApi.OpenForReadResult handleOpenForRead(Uri uri) throws IOException {
+    throw new FileNotFoundException("Plugin can't handle uri: " + uri);
+  }
+
+  protected Uri toPluginUri(Uri origUri) {
+    return new Uri.Builder()
+      .scheme("cdvplugin")
+      .authority(getClass().getName())
+      .appendQueryParameter("origUri", origUri.toString())
+      .build();
+  }
+
+  protected Uri fromPluginUri(Uri pluginUri) {
+    return Uri.parse(pluginUri.getQueryParameter("origUri"));
+  }
+
+  public void onRequestPermissionResult(int requestCode, String[] permissions, int[] grantResults) throws JSONException {
+  }
+
+}
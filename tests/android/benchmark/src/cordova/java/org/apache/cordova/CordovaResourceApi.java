@@ -0,0 +1,29 @@
+package org.apache.cordova;
+
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+
+import java.io.InputStream;
+
+// Compile-time shim of cordova-android API used by the plugin, see README.md of the benchmark module
+public class CordovaResourceApi {
+
+  public static final class OpenForReadResult {
+
+    public final Uri uri;
+    public final InputStream inputStream;
+    public final String mimeType;
+    public final long length;
+    public final AssetFileDescriptor assetFd;
+
+    public OpenForReadResult(Uri uri, InputStream inputStream, String mimeType, long length, AssetFileDescriptor assetFd) {
+      this.uri = uri;
+      this.inputStream = inputStream;
+      this.mimeType = mimeType;
+      this.length = length;
+      this.assetFd = assetFd;
+    }
+
+  }
+
+}
@@ -0,0 +1,5 @@
+package org.apache.cordova;
+
+// Compile-time shim of cordova-android API used by the plugin, see README.md of the benchmark module
+public interface CordovaWebView {
+}
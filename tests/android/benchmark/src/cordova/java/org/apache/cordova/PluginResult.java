@@ -0,0 +1,79 @@
+package org.apache.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.List;
+
+// Compile-time shim of cordova-android API used by the plugin, see README.md of the benchmark module.
+// Like the real one, encodes the message to string when created, as this is part of the cost of a result.
+public class PluginResult {
+
+  public enum Status {
+    NO_RESULT,
+    OK,
+    CLASS_NOT_FOUND_EXCEPTION,
+    ILLEGAL_ACCESS_EXCEPTION,
+    INSTANTIATION_EXCEPTION,
+    MALFORMED_URL_EXCEPTION,
+    IO_EXCEPTION,
+    INVALID_ACTION,
+    JSON_EXCEPTION,
+    ERROR
+  }
+
+  private final Status status;
+  private final String encodedMessage;
+  private boolean keepCallback = false;
+
+  public PluginResult(Status status) {
+    this(status, status.name());
+  }
+
+  public PluginResult(Status status, String message) {
+    this.status = status;
+    this.encodedMessage = JSONObject.quote(message);
+  }
+
+  public PluginResult(Status status, JSONArray message) {
+    this.status = status;
+    this.encodedMessage = message.toString();
+  }
+
+  public PluginResult(Status status, JSONObject message) {
+    this.status = status;
+    this.encodedMessage = message.toString();
+  }
+
+  public PluginResult(Status status, int i) {
+    this.status = status;
+    this.encodedMessage = Integer.toString(i);
+  }
+
+  public PluginResult(Status status, boolean b) {
+    this.status = status;
+    this.encodedMessage = Boolean.toString(b);
+  }
+
+  public PluginResult(Status status, List<PluginResult> multipartMessages) {
+    this.status = status;
+    this.encodedMessage = null;
+  }
+
+  public void setKeepCallback(boolean b) {
+    this.keepCallback = b;
+  }
+
+  public boolean getKeepCallback() {
+    return keepCallback;
+  }
+
+  public int getStatus() {
+    return status.ordinal();
+  }
+
+  public String getMessage() {
+    return encodedMessage;
+  }
+
+}
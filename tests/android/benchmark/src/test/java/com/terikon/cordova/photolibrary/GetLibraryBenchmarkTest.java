@@ -0,0 +1,136 @@
+package com.terikon.cordova.photolibrary;
+
+import android.content.Context;
+
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+// End-to-end getLibrary over SyntheticMediaStore: from MediaStore query to encoded chunks, as they are passed to webview.
+// Started by "gradle getLibraryBenchmark", report is written to build/reports/benchmark/getLibrary.txt.
+@RunWith(RobolectricTestRunner.class)
+public class GetLibraryBenchmarkTest {
+
+  private static final int WARMUP_ROWS = 10000;
+
+  private Context context;
+
+  @Before
+  public void setup() {
+    SyntheticMediaStore.images = SyntheticMediaStore.findTestImages();
+    Robolectric.buildContentProvider(SyntheticMediaStore.class).create(SyntheticMediaStore.AUTHORITY);
+    context = RuntimeEnvironment.getApplication();
+  }
+
+  @Test
+  public void getLibrary() throws JSONException, IOException {
+
+    int rows = Integer.getInteger("photolibrary.rows", 100000);
+    int itemsInChunk = Integer.getInteger("photolibrary.itemsInChunk", 1000);
+    boolean compactIds = Boolean.getBoolean("photolibrary.compactIds");
+
+    run(Math.min(rows, WARMUP_ROWS), itemsInChunk, compactIds);
+    Measurement measurement = run(rows, itemsInChunk, compactIds);
+
+    assertEquals(rows, measurement.items);
+
+    double totalSec = measurement.totalNanos / 1e9;
+    String report = String.format(Locale.US,
+      "getLibrary over synthetic MediaStore%n" +
+      "rows:                   %d%n" +
+      "itemsInChunk:           %d%n" +
+      "compactIds:             %b%n" +
+      "total time:             %.1f ms%n" +
+      "throughput:             %.0f items/s%n" +
+      "time to first chunk:    %.1f ms%n" +
+      "allocated:              %.1f MB (%.0f bytes/item)%n" +
+      "allocation rate:        %.1f MB/s%n" +
+      "encoded chunks:         %.1f MB (%.0f bytes/item)%n",
+      rows,
+      itemsInChunk,
+      compactIds,
+      measurement.totalNanos / 1e6,
+      measurement.items / totalSec,
+      measurement.firstChunkNanos / 1e6,
+      measurement.allocatedBytes / 1e6, (double) measurement.allocatedBytes / measurement.items,
+      measurement.allocatedBytes / 1e6 / totalSec,
+      measurement.encodedChars / 1e6, (double) measurement.encodedChars / measurement.items);
+
+    System.out.print(report);
+
+    File reportsDir = new File(System.getProperty("photolibrary.reportsDir", "build/reports/benchmark"));
+    reportsDir.mkdirs();
+    FileWriter writer = new FileWriter(new File(reportsDir, "getLibrary.txt"));
+    try {
+      writer.write(report);
+    } finally {
+      writer.close();
+    }
+
+  }
+
+  private Measurement run(int rows, int itemsInChunk, boolean compactIds) throws JSONException {
+
+    SyntheticMediaStore.rows = rows;
+
+    final PhotoLibraryService service = new PhotoLibraryService();
+    final Measurement measurement = new Measurement();
+    final long allocatedAtStart = allocatedBytes();
+    final long start = System.nanoTime();
+
+    PhotoLibraryGetLibraryOptions options = new PhotoLibraryGetLibraryOptions(itemsInChunk, 0, true, false, false, null, compactIds);
+
+    service.getLibrary(context, options, new PhotoLibraryService.ChunkResultRunnable() {
+      @Override
+      public void run(ArrayList<JSONObject> chunk, int chunkNum, boolean isLastChunk, boolean isCancelled) {
+        try {
+          // Same encoding that PhotoLibrary does before sending the chunk
+          JSONObject result = PhotoLibrary.createGetLibraryResult(chunk, chunkNum, isLastChunk, isCancelled);
+          measurement.encodedChars += new PluginResult(PluginResult.Status.OK, result).getMessage().length();
+        } catch (JSONException e) {
+          throw new RuntimeException(e);
+        }
+        if (chunkNum == 0) {
+          measurement.firstChunkNanos = System.nanoTime() - start;
+        }
+        measurement.items += chunk.size();
+      }
+    });
+
+    measurement.totalNanos = System.nanoTime() - start;
+    measurement.allocatedBytes = allocatedBytes() - allocatedAtStart;
+
+    return measurement;
+
+  }
+
+  // Bytes allocated by current thread, getLibrary and its chunk callbacks run on it
+  private static long allocatedBytes() {
+    com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static class Measurement {
+    int items;
+    long firstChunkNanos;
+    long totalNanos;
+    long allocatedBytes;
+    long encodedChars;
+  }
+
+}
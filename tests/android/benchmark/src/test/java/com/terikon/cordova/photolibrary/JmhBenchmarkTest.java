@@ -0,0 +1,45 @@
+package com.terikon.cordova.photolibrary;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.io.File;
+import java.util.Collection;
+
+import static org.junit.Assert.assertFalse;
+
+// Runs PhotoLibraryBenchmarks in-process, so android classes come from Robolectric sandbox.
+// Started by "gradle jmh", results are written to build/reports/benchmark/jmh.json.
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE) // real Bitmap operations for rotateImage
+public class JmhBenchmarkTest {
+
+  @Test
+  public void runBenchmarks() throws RunnerException {
+
+    File reportsDir = new File(System.getProperty("photolibrary.reportsDir", "build/reports/benchmark"));
+    reportsDir.mkdirs();
+
+    Options options = new OptionsBuilder()
+      .include(PhotoLibraryBenchmarks.class.getSimpleName() + "\\." + System.getProperty("jmh.include", ".*"))
+      .forks(0)
+      .shouldFailOnError(true)
+      .resultFormat(ResultFormatType.JSON)
+      .result(new File(reportsDir, "jmh.json").getAbsolutePath())
+      .build();
+
+    Collection<RunResult> results = new Runner(options).run();
+
+    assertFalse("No benchmarks matched", results.isEmpty());
+
+  }
+
+}
@@ -0,0 +1,294 @@
+package com.terikon.cordova.photolibrary;
+
+import android.database.MatrixCursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Micro benchmarks of hot paths of getLibrary and getThumbnail. Run by JmhBenchmarkTest, inside Robolectric sandbox.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(0) // forked JVM would not have Robolectric sandbox
+public class PhotoLibraryBenchmarks {
+
+  @State(Scope.Thread)
+  public static class SampleSizeState {
+
+    BitmapFactory.Options options;
+
+    @Setup
+    public void setup() {
+      options = new BitmapFactory.Options();
+      options.outWidth = 8000;
+      options.outHeight = 6000;
+    }
+
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public int calculateInSampleSize(SampleSizeState state) {
+    return PhotoLibraryService.calculateInSampleSize(state.options, PhotoLibrary.DEFAULT_WIDTH, PhotoLibrary.DEFAULT_HEIGHT);
+  }
+
+  @State(Scope.Thread)
+  public static class RotateState {
+
+    @Param({"3", "6", "8"}) // 180, 90 and 270 degrees
+    int orientation;
+
+    Bitmap bitmap;
+
+    @Setup
+    public void setup() {
+      File image = SyntheticMediaStore.findTestImages()[0];
+      bitmap = BitmapFactory.decodeFile(image.getAbsolutePath());
+    }
+
+    @TearDown
+    public void tearDown() {
+      bitmap.recycle();
+    }
+
+  }
+
+  @Benchmark
+  public void rotateImage(RotateState state, Blackhole blackhole) {
+    Bitmap rotated = PhotoLibraryService.rotateImage(state.bitmap, state.orientation);
+    blackhole.consume(rotated.getWidth());
+    if (rotated != state.bitmap) {
+      rotated.recycle();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class PhotoIdState {
+
+    String photoId = "1234567;/storage/emulated/0/DCIM/Camera/IMG_20170101_120000.jpg";
+
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void parsePhotoId(PhotoIdState state, Blackhole blackhole) {
+    blackhole.consume(PhotoLibraryService.getImageId(state.photoId));
+    blackhole.consume(PhotoLibraryService.getImageURL(state.photoId));
+  }
+
+  @State(Scope.Benchmark)
+  public static class MetricsState {
+
+    PhotoLibraryMetrics metrics = new PhotoLibraryMetrics();
+
+  }
+
+  // Overhead that metrics add to each measured stage, shared by all threads as in the plugin
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void recordStage(MetricsState state) {
+    state.metrics.recordStage(PhotoLibraryMetrics.STAGE_EXIF, PhotoLibraryMetrics.start());
+  }
+
+  @State(Scope.Benchmark)
+  public static class HashIndexState {
+
+    @Param({"100000"})
+    int size;
+
+    PhotoLibraryHashIndex.BKTree tree;
+    long[] hashes;
+    int next = 0;
+
+    @Setup
+    public void setup() {
+      Random random = new Random(size);
+      tree = new PhotoLibraryHashIndex.BKTree();
+      hashes = new long[size];
+      for (int i = 0; i < size; i++) {
+        // Every 8th photo is a near duplicate of previous one, as in bursts
+        hashes[i] = i % 8 == 7 ? hashes[i - 1] ^ (1L << random.nextInt(64)) : random.nextLong();
+        tree.add(hashes[i], i);
+      }
+    }
+
+  }
+
+  // Search behind findSimilar of one photo, threshold as default of the plugin
+  @Benchmark
+  public List<long[]> findSimilar(HashIndexState state) {
+    List<long[]> result = new ArrayList<long[]>();
+    state.tree.search(state.hashes[state.next++ % state.size], PhotoLibrary.DEFAULT_SIMILARITY_THRESHOLD, result);
+    return result;
+  }
+
+  @State(Scope.Benchmark)
+  public static class SpatialIndexState {
+
+    @Param({"100000"})
+    int size;
+
+    PhotoLibrarySpatialIndex index;
+    JSONObject city;
+    JSONObject world;
+
+    @Setup
+    public void setup() throws Exception {
+      Random random = new Random(size);
+      long[] keys = new long[size];
+      long[] ids = new long[size];
+      double[] latitudes = new double[size];
+      double[] longitudes = new double[size];
+      String[] paths = new String[size];
+      for (int i = 0; i < size; i++) {
+        // Most photos are taken around home, the rest while travelling
+        boolean home = random.nextInt(4) > 0;
+        ids[i] = i;
+        latitudes[i] = home ? 47.4 + random.nextGaussian() * 0.05 : random.nextDouble() * 140 - 70;
+        longitudes[i] = home ? 8.5 + random.nextGaussian() * 0.05 : random.nextDouble() * 360 - 180;
+        paths[i] = "/storage/emulated/0/DCIM/Camera/IMG_" + i + ".jpg";
+        keys[i] = PhotoLibrarySpatialIndex.key(cell(PhotoLibrarySpatialIndex.mercatorX(longitudes[i])),
+          cell(PhotoLibrarySpatialIndex.mercatorY(latitudes[i])));
+      }
+
+      // Index is built from MediaStore, which is not available here
+      index = new PhotoLibrarySpatialIndex(PhotoLibraryService.getInstance());
+      setField(index, "grid", new PhotoLibrarySpatialIndex.Grid(PhotoLibraryService.getInstance().getLibraryVersion(),
+        keys, ids, latitudes, longitudes, paths));
+
+      city = new JSONObject().put("south", 47.3).put("west", 8.4).put("north", 47.5).put("east", 8.7);
+      world = new JSONObject().put("south", -85).put("west", -180).put("north", 85).put("east", 180);
+    }
+
+    private static int cell(double coordinate) {
+      return (int) Math.min((1 << PhotoLibrarySpatialIndex.MAX_ZOOM) - 1, coordinate * (1 << PhotoLibrarySpatialIndex.MAX_ZOOM));
+    }
+
+    private static void setField(Object object, String name, Object value) throws Exception {
+      Field field = object.getClass().getDeclaredField(name);
+      field.setAccessible(true);
+      field.set(object, value);
+    }
+
+  }
+
+  // Map of whole world, as shown on start of map view
+  @Benchmark
+  public JSONArray clusterRegionWorld(SpatialIndexState state) throws JSONException {
+    return state.index.clusterRegion(null, state.world, 4, true);
+  }
+
+  // Map of a city, with most photos of the library in it
+  @Benchmark
+  public JSONArray clusterRegionCity(SpatialIndexState state) throws JSONException {
+    return state.index.clusterRegion(null, state.city, 13, true);
+  }
+
+  @State(Scope.Thread)
+  public static class ChunkState {
+
+    @Param({"100", "1000"})
+    int itemsInChunk;
+
+    @Param({"false", "true"})
+    boolean compactIds;
+
+    PhotoLibraryService service;
+    JSONObject columns;
+    MatrixCursor cursor;
+    ArrayList<JSONObject> chunk;
+
+    @Setup
+    public void setup() throws JSONException {
+      service = new PhotoLibraryService();
+      columns = PhotoLibraryService.createLibraryColumns();
+
+      ArrayList<String> projection = new ArrayList<String>();
+      java.util.Iterator<String> keys = columns.keys();
+      while (keys.hasNext()) {
+        projection.add(columns.getString(keys.next()));
+      }
+      cursor = SyntheticMediaStore.createCursor(projection.toArray(new String[0]), itemsInChunk, SyntheticMediaStore.findTestImages());
+
+      chunk = readChunk(this);
+    }
+
+    @TearDown
+    public void tearDown() {
+      cursor.close();
+    }
+
+  }
+
+  // Reading of rows as done by queryLibrary, including EXIF orientation read for each item
+  @Benchmark
+  public ArrayList<JSONObject> buildChunk(ChunkState state) throws JSONException {
+    return readChunk(state);
+  }
+
+  // Result of getLibrary chunk, encoded to string as cordova does before passing it to webview
+  @Benchmark
+  public String createGetLibraryResult(ChunkState state) throws JSONException {
+    JSONObject result = PhotoLibrary.createGetLibraryResult(state.chunk, 0, true, false);
+    return new PluginResult(PluginResult.Status.OK, result).getMessage();
+  }
+
+  @State(Scope.Thread)
+  public static class PictureState {
+
+    @Param({"16384", "131072"})
+    int size;
+
+    PhotoLibraryService.PictureData pictureData;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      byte[] bytes = new byte[size];
+      new Random(size).nextBytes(bytes);
+      pictureData = new PhotoLibraryService().new PictureData(bytes, "image/jpeg");
+    }
+
+  }
+
+  // Base64 and JSON encoding of getThumbnail and getPhoto results
+  @Benchmark
+  public String createMultipartPluginResult(PictureState state) throws JSONException {
+    return PhotoLibrary.createMultipartPluginResult(PluginResult.Status.OK, state.pictureData).getMessage();
+  }
+
+  private static ArrayList<JSONObject> readChunk(ChunkState state) throws JSONException {
+    ArrayList<JSONObject> chunk = new ArrayList<JSONObject>(state.itemsInChunk);
+    state.cursor.moveToPosition(-1);
+    while (state.cursor.moveToNext()) {
+      chunk.add(state.service.readLibraryItem(state.cursor, state.columns, true, state.compactIds));
+    }
+    return chunk;
+  }
+
+}
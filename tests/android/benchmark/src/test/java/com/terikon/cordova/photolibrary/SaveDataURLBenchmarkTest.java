@@ -0,0 +1,112 @@
+package com.terikon.cordova.photolibrary;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Writing of dataURL payloads by saveImage and saveImages, from url string to file in the album.
+// Memory used while writing should not depend on size of the payload, so allocations are measured for several sizes.
+// Started by "gradle saveDataURLBenchmark", report is written to build/reports/benchmark/saveDataURL.txt.
+@RunWith(RobolectricTestRunner.class)
+public class SaveDataURLBenchmarkTest {
+
+  // Fixed buffers of decoding and writing, far below any payload measured
+  private static final long MAX_ALLOCATED_BYTES = 1024 * 1024;
+
+  @Test
+  public void saveDataURL() throws IOException, URISyntaxException {
+
+    String[] payloadSizesMB = System.getProperty("photolibrary.payloadSizesMB", "1,8,32").split(",");
+
+    File albumDirectory = Files.createTempDirectory("photo-library-album").toFile();
+    PhotoLibraryService service = new PhotoLibraryService();
+
+    StringBuilder report = new StringBuilder("Writing of dataURL to album\n");
+    report.append(String.format(Locale.US, "%12s %12s %12s %12s%n", "payload MB", "time ms", "allocated KB", "MB/s"));
+
+    write(service, createDataURL(1024 * 1024), albumDirectory); // warmup
+
+    for (String payloadSizeMB : payloadSizesMB) {
+
+      int payloadBytes = Integer.parseInt(payloadSizeMB.trim()) * 1024 * 1024;
+      String dataURL = createDataURL(payloadBytes);
+
+      Measurement measurement = write(service, dataURL, albumDirectory);
+
+      assertEquals(payloadBytes, measurement.file.length());
+      measurement.file.delete();
+
+      report.append(String.format(Locale.US, "%12d %12.1f %12.1f %12.1f%n",
+        payloadBytes / 1024 / 1024,
+        measurement.nanos / 1e6,
+        measurement.allocatedBytes / 1024.0,
+        payloadBytes / 1e6 / (measurement.nanos / 1e9)));
+
+      assertTrue("Writing of " + payloadSizeMB.trim() + "MB payload allocated " + measurement.allocatedBytes + " bytes",
+        measurement.allocatedBytes < MAX_ALLOCATED_BYTES);
+
+    }
+
+    albumDirectory.delete();
+
+    System.out.print(report);
+
+    File reportsDir = new File(System.getProperty("photolibrary.reportsDir", "build/reports/benchmark"));
+    reportsDir.mkdirs();
+    FileWriter writer = new FileWriter(new File(reportsDir, "saveDataURL.txt"));
+    try {
+      writer.write(report.toString());
+    } finally {
+      writer.close();
+    }
+
+  }
+
+  private static Measurement write(PhotoLibraryService service, String dataURL, File albumDirectory) throws IOException, URISyntaxException {
+
+    Measurement measurement = new Measurement();
+    long allocatedAtStart = allocatedBytes();
+    long start = System.nanoTime();
+
+    measurement.file = service.writeMediaFile(null, dataURL, albumDirectory, new HashMap<String, String>());
+
+    measurement.nanos = System.nanoTime() - start;
+    measurement.allocatedBytes = allocatedBytes() - allocatedAtStart;
+
+    return measurement;
+
+  }
+
+  private static String createDataURL(int payloadBytes) {
+    byte[] payload = new byte[payloadBytes];
+    new Random(payloadBytes).nextBytes(payload);
+    return "data:image/jpeg;base64," + Base64.getEncoder().encodeToString(payload);
+  }
+
+  // Bytes allocated by current thread, writeMediaFile runs on it
+  private static long allocatedBytes() {
+    com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static class Measurement {
+    File file;
+    long nanos;
+    long allocatedBytes;
+  }
+
+}
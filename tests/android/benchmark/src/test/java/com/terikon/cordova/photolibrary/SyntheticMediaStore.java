@@ -0,0 +1,121 @@
+package com.terikon.cordova.photolibrary;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+
+// MediaStore replacement for benchmarks, registered for "media" authority.
+// Returns configured number of image rows, that point to files of tests/test-images in round robin, newest first.
+public class SyntheticMediaStore extends ContentProvider {
+
+  public static final String AUTHORITY = "media";
+
+  static volatile int rows = 0;
+  static volatile File[] images = new File[0];
+
+  private static final long NEWEST_DATE_TAKEN = 1500000000000L;
+  private static final int ALBUMS_COUNT = 20;
+
+  public static File[] findTestImages() {
+    File directory = new File(System.getProperty("photolibrary.testImages", "../../test-images"));
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.toLowerCase().endsWith(".jpg");
+      }
+    });
+    if (files == null || files.length == 0) {
+      throw new IllegalStateException("No test images found in " + directory.getAbsolutePath());
+    }
+    Arrays.sort(files);
+    return files;
+  }
+
+  public static MatrixCursor createCursor(String[] projection, int rows, File[] images) {
+
+    MatrixCursor cursor = new MatrixCursor(projection, rows);
+
+    for (int i = 0; i < rows; i++) {
+      File image = images[i % images.length];
+      Object[] row = new Object[projection.length];
+      for (int c = 0; c < projection.length; c++) {
+        row[c] = columnValue(projection[c], i, rows, image);
+      }
+      cursor.addRow(row);
+    }
+
+    return cursor;
+
+  }
+
+  private static Object columnValue(String column, int i, int rows, File image) {
+
+    if (MediaStore.MediaColumns._ID.equals(column)) {
+      return (long) (rows - i);
+    } else if (MediaStore.MediaColumns.DISPLAY_NAME.equals(column)) {
+      return image.getName();
+    } else if (MediaStore.MediaColumns.DATA.equals(column)) {
+      return image.getAbsolutePath();
+    } else if (MediaStore.MediaColumns.MIME_TYPE.equals(column)) {
+      return "image/jpeg";
+    } else if (MediaStore.Files.FileColumns.MEDIA_TYPE.equals(column)) {
+      return MediaStore.Files.FileColumns.MEDIA_TYPE_IMAGE;
+    } else if (MediaStore.MediaColumns.WIDTH.equals(column)) {
+      return image.getName().startsWith("Portrait") ? 450 : 600;
+    } else if (MediaStore.MediaColumns.HEIGHT.equals(column)) {
+      return image.getName().startsWith("Portrait") ? 600 : 450;
+    } else if (MediaStore.Images.ImageColumns.BUCKET_ID.equals(column)) {
+      return Integer.toString(i % ALBUMS_COUNT);
+    } else if (MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME.equals(column)) {
+      return "Album " + (i % ALBUMS_COUNT);
+    } else if (MediaStore.Images.ImageColumns.DATE_TAKEN.equals(column)) {
+      return NEWEST_DATE_TAKEN - i * 60000L;
+    } else if (MediaStore.MediaColumns.DATE_MODIFIED.equals(column)) {
+      return (NEWEST_DATE_TAKEN - i * 60000L) / 1000;
+    } else if (MediaStore.Images.ImageColumns.LATITUDE.equals(column)) {
+      return 32.0 + (i % 1000) / 1000.0;
+    } else if (MediaStore.Images.ImageColumns.LONGITUDE.equals(column)) {
+      return 34.0 + (i % 997) / 997.0;
+    }
+    return null;
+
+  }
+
+  @Override
+  public boolean onCreate() {
+    return true;
+  }
+
+  @Override
+  public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+    return createCursor(projection, rows, images);
+  }
+
+  @Override
+  public String getType(Uri uri) {
+    return null;
+  }
+
+  @Override
+  public Uri insert(Uri uri, ContentValues values) {
+    throw new UnsupportedOperationException("SyntheticMediaStore is read only");
+  }
+
+  @Override
+  public int delete(Uri uri, String selection, String[] selectionArgs) {
+    throw new UnsupportedOperationException("SyntheticMediaStore is read only");
+  }
+
+  @Override
+  public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    throw new UnsupportedOperationException("SyntheticMediaStore is read only");
+  }
+
+}
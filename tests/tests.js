@@ -9,6 +9,9 @@ cordova.require('cordova-plugin-photo-library-tests.blueimp-canvastoblob');
 
 var testUtils = cordova.require('cordova-plugin-photo-library-tests.test-utils');
 
+// Some functionality is implemented only on android for now
+var describeAndroid = cordova.platformId === 'android' ? describe : xdescribe;
+
 var expectedImages = [
     { fileName: 'Landscape_1.jpg', width: 600, height: 450, },
     { fileName: 'Landscape_2.jpg', width: 600, height: 450, },
@@ -186,6 +189,158 @@ exports.defineAutoTests = function () {
 
       });
 
+      describeAndroid('cordova.plugins.photoLibrary.getLibraryItems', function () {
+
+        var libraryItems = null;
+        var getLibraryItemsError = null;
+        var requestedItems = null;
+
+        beforeAll(function (done) {
+          requestedItems = [library[library.length - 1], library[0]];
+          cordova.plugins.photoLibrary.getLibraryItems(
+            requestedItems.map(function (libraryItem) { return libraryItem.id; }),
+            function (items) {
+              libraryItems = items;
+              done();
+            },
+            function (err) {
+              getLibraryItemsError = err;
+              done.fail(err);
+            },
+            { includeAlbumData: true });
+        });
+
+        it('should not fail', function () {
+          expect(getLibraryItemsError).toBeNull('failed with error: ' + getLibraryItemsError);
+        });
+
+        it('should return requested items in requested order', function () {
+          expect(libraryItems.map(function (item) { return item.id; }))
+            .toEqual(requestedItems.map(function (item) { return item.id; }));
+        });
+
+        it('should return items in same format as getLibrary', function () {
+          libraryItems.forEach(function (item, index) {
+            expect(item.fileName).toEqual(requestedItems[index].fileName);
+            expect(item.width).toEqual(requestedItems[index].width);
+            expect(item.height).toEqual(requestedItems[index].height);
+            expect(item.creationDate).toEqual(requestedItems[index].creationDate);
+            expect(item.albumIds).toEqual(requestedItems[index].albumIds);
+            expect(item.thumbnailURL).toEqual(jasmine.any(String));
+          });
+        });
+
+      });
+
+      describeAndroid('getLibrary with compactIds', function () {
+
+        var compactLibrary = null;
+        var compactThumbnail = null;
+        var compactItems = null;
+        var compactIdsError = null;
+
+        beforeAll(function (done) {
+          new Promise(function (resolve, reject) {
+            cordova.plugins.photoLibrary.getLibrary(function (result) { resolve(result.library); }, reject, { compactIds: true });
+          })
+          .then(function (result) {
+            compactLibrary = result;
+            return new Promise(function (resolve, reject) {
+              cordova.plugins.photoLibrary.getThumbnail(compactLibrary[0].id, resolve, reject);
+            });
+          })
+          .then(function (thumbnail) {
+            compactThumbnail = thumbnail;
+            return new Promise(function (resolve, reject) {
+              // Full ids should still be accepted
+              cordova.plugins.photoLibrary.getLibraryItems([library[0].id], resolve, reject, { compactIds: true });
+            });
+          })
+          .then(function (items) {
+            compactItems = items;
+            done();
+          })
+          .catch(function (err) {
+            compactIdsError = err;
+            done.fail(err);
+          });
+        });
+
+        it('should not fail', function () {
+          expect(compactIdsError).toBeNull('failed with error: ' + compactIdsError);
+        });
+
+        it('should return numeric ids', function () {
+          compactLibrary.forEach(function (libraryItem) {
+            expect(libraryItem.id).toMatch(/^\d+$/);
+          });
+        });
+
+        it('should return same items as full ids', function () {
+          expect(compactLibrary.map(function (item) { return item.fileName; }))
+            .toEqual(library.map(function (item) { return item.fileName; }));
+        });
+
+        it('should get thumbnail by compact id', function () {
+          expect(compactThumbnail.size).toBeGreaterThan(0);
+        });
+
+        it('should convert full id to compact one', function () {
+          expect(compactItems[0].id).toEqual(compactLibrary[0].id);
+        });
+
+      });
+
+      describeAndroid('getLibrary with includeVideos', function () {
+
+        var mixedLibrary = null;
+        var videosLibrary = null;
+        var includeVideosError = null;
+
+        beforeAll(function (done) {
+          new Promise(function (resolve, reject) {
+            cordova.plugins.photoLibrary.getLibrary(function (result) { resolve(result.library); }, reject, { includeVideos: true });
+          })
+          .then(function (result) {
+            mixedLibrary = result;
+            return new Promise(function (resolve, reject) {
+              cordova.plugins.photoLibrary.getLibrary(function (result) { resolve(result.library); }, reject, { includeImages: false, includeVideos: true });
+            });
+          })
+          .then(function (result) {
+            videosLibrary = result;
+            done();
+          })
+          .catch(function (err) {
+            includeVideosError = err;
+            done.fail(err);
+          });
+        });
+
+        it('should not fail', function () {
+          expect(includeVideosError).toBeNull('failed with error: ' + includeVideosError);
+        });
+
+        it('should return images along with videos', function () {
+          library.forEach(function (libraryItem) {
+            var mixedItem = mixedLibrary.find(function (item) { return item.id === libraryItem.id; });
+            expect(mixedItem).toBeDefined();
+            expect(mixedItem.mediaType).toEqual('image');
+            expect(mixedItem.mimeType).toMatch(/^image\//);
+            expect(mixedItem.duration).toBeUndefined();
+          });
+        });
+
+        it('should return only videos when images are excluded', function () {
+          videosLibrary.forEach(function (libraryItem) {
+            expect(libraryItem.mediaType).toEqual('video');
+            expect(libraryItem.mimeType).toMatch(/^video\//);
+            expect(libraryItem.duration).toEqual(jasmine.any(Number));
+          });
+        });
+
+      });
+
       describe('cordova.plugins.photoLibrary.getThumbnailURL', function () {
 
         var thumbnailURL = null;
@@ -316,6 +471,474 @@ exports.defineAutoTests = function () {
 
       });
 
+      describeAndroid('cordova.plugins.photoLibrary.getThumbnail with outputFormat', function () {
+
+        var jpegBlob = null;
+        var webpBlob = null;
+        var limitedBlob = null;
+        var outputFormatError = null;
+
+        var getThumbnail = function (options) {
+          return new Promise(function (resolve, reject) {
+            cordova.plugins.photoLibrary.getThumbnail(library[0].id, resolve, reject, options);
+          });
+        };
+
+        beforeAll(function (done) {
+          Promise.all([
+            getThumbnail({ thumbnailWidth: 256, thumbnailHeight: 256, quality: 0.9 }),
+            getThumbnail({ thumbnailWidth: 256, thumbnailHeight: 256, quality: 0.9, outputFormat: 'webp' }),
+            getThumbnail({ thumbnailWidth: 256, thumbnailHeight: 256, quality: 0.9, targetByteSize: 16384 }),
+          ])
+          .then(function (blobs) {
+            jpegBlob = blobs[0];
+            webpBlob = blobs[1];
+            limitedBlob = blobs[2];
+            done();
+          })
+          .catch(function (err) {
+            outputFormatError = err;
+            done.fail(err);
+          });
+        });
+
+        it('should not fail', function () {
+          expect(outputFormatError).toBeNull('failed with error: ' + outputFormatError);
+        });
+
+        it('should return jpeg by default', function () {
+          expect(jpegBlob.type).toEqual('image/jpeg');
+        });
+
+        it('should return webp when requested', function () {
+          expect(webpBlob.type).toEqual('image/webp');
+          expect(webpBlob.size).not.toEqual(0);
+        });
+
+        it('should fit into targetByteSize', function () {
+          expect(limitedBlob.size).toBeLessThan(16384 + 1);
+        });
+
+      });
+
+      describeAndroid('cordova.plugins.photoLibrary.getPhoto with progressive', function () {
+
+        var libraryItem = null;
+
+        beforeAll(function () {
+          libraryItem = library.find(function (libraryItem) { return libraryItem.fileName === 'Landscape_6.jpg'; }); // rotated by EXIF
+        });
+
+        it('should return preview, then the photo', function (done) {
+          var results = [];
+          var sessionId = cordova.plugins.photoLibrary.getPhoto(libraryItem,
+            function (blob, isPreview) {
+              results.push({ blob: blob, isPreview: isPreview });
+              if (!isPreview) {
+                expect(results.length).toEqual(2);
+                expect(results[0].isPreview).toBe(true);
+                expect(results[0].blob.type).toEqual('image/jpeg');
+                expect(results[1].blob.size).toBeGreaterThan(0);
+                done();
+              }
+            },
+            done.fail,
+            { progressive: true });
+          expect(sessionId).toEqual(jasmine.any(String));
+        });
+
+        it('should not call back after cancelPhoto', function (done) {
+          var called = false;
+          var sessionId = cordova.plugins.photoLibrary.getPhoto(libraryItem,
+            function () { called = true; },
+            function () { called = true; },
+            { progressive: true });
+          cordova.plugins.photoLibrary.cancelPhoto(sessionId, function (found) {
+            expect(found).toEqual(jasmine.any(Boolean));
+            setTimeout(function () {
+              expect(called).toBe(false);
+              done();
+            }, 1000);
+          }, done.fail);
+        });
+
+      });
+
+      describeAndroid('cordova.plugins.photoLibrary.getPhotoRegion', function () {
+
+        var loadImage = function (url) {
+          return new Promise(function (resolve, reject) {
+            var img = new Image();
+            img.onload = function () { resolve(img); };
+            img.onerror = reject;
+            img.src = url;
+          });
+        };
+
+        var libraryItem = null;
+
+        beforeAll(function () {
+          libraryItem = library.find(function (libraryItem) { return libraryItem.fileName === 'Landscape_6.jpg'; }); // rotated by EXIF
+        });
+
+        it('should return region in requested size', function (done) {
+          var rect = { x: 0, y: 0, width: Math.floor(libraryItem.width / 2), height: Math.floor(libraryItem.height / 2) };
+          cordova.plugins.photoLibrary.getPhotoRegion(libraryItem, rect, 0.5,
+            function (blob) {
+              expect(blob.type).toEqual('image/jpeg');
+              loadImage(URL.createObjectURL(blob))
+                .then(function (img) {
+                  expect(img.width).toEqual(Math.round(rect.width * 0.5));
+                  expect(img.height).toEqual(Math.round(rect.height * 0.5));
+                  done();
+                })
+                .catch(done.fail);
+            },
+            done.fail);
+        });
+
+        it('should load tile url', function (done) {
+          var rect = { x: 10, y: 20, width: 100, height: 50 };
+          loadImage(cordova.plugins.photoLibrary.getTileURL(libraryItem, rect, 1))
+            .then(function (img) {
+              expect(img.width).toEqual(100);
+              expect(img.height).toEqual(50);
+              done();
+            })
+            .catch(done.fail);
+        });
+
+        it('should fail for region outside of the photo', function (done) {
+          var rect = { x: libraryItem.width + 10, y: 0, width: 10, height: 10 };
+          cordova.plugins.photoLibrary.getPhotoRegion(libraryItem, rect, 1,
+            function () {
+              done.fail('succeeded for region outside of the photo');
+            },
+            function (err) {
+              expect(err).toContain('outside');
+              done();
+            });
+        });
+
+      });
+
+      describeAndroid('cordova.plugins.photoLibrary.exportPhotos', function () {
+
+        var expectedFileNames = ['Landscape_1.jpg', 'Landscape_6.jpg'];
+        var libraryItems = null;
+        var files = null;
+        var progress = [];
+        var exportError = null;
+
+        beforeAll(function (done) {
+          libraryItems = expectedFileNames.map(function (fileName) {
+            return library.find(function (libraryItem) { return libraryItem.fileName === fileName; });
+          });
+          var targetDir = cordova.file.dataDirectory + 'export-' + new Date().getTime() + '/';
+          cordova.plugins.photoLibrary.exportPhotos(libraryItems.concat(['0;/not/existing.jpg']), targetDir,
+            function (result) {
+              files = result;
+              done();
+            },
+            function (err) {
+              exportError = err;
+              done.fail(err);
+            },
+            {
+              onProgress: function (file, completed, total) {
+                progress.push({ file: file, completed: completed, total: total });
+              }
+            });
+        });
+
+        it('should not fail', function () {
+          expect(exportError).toBeNull('failed with error: ' + exportError);
+        });
+
+        it('should return exported files in order of photo ids', function () {
+          expect(files.length).toEqual(3);
+          libraryItems.forEach(function (libraryItem, index) {
+            expect(files[index].id).toEqual(libraryItem.id);
+            expect(files[index].url).toContain(expectedFileNames[index]);
+            expect(files[index].size).toBeGreaterThan(0);
+          });
+        });
+
+        it('should report error of photo that could not be exported', function () {
+          expect(files[2].error).toBeDefined();
+          expect(files[2].url).toBeUndefined();
+        });
+
+        it('should report progress of each file', function () {
+          expect(progress.length).toEqual(3);
+          expect(progress[2].completed).toEqual(3);
+          expect(progress[2].total).toEqual(3);
+        });
+
+      });
+
+      describeAndroid('cordova.plugins.photoLibrary.findSimilar', function () {
+
+        // test-images/Landscape_* are same image, stored in different EXIF orientations
+        var landscapes = null;
+        var similar = null;
+        var groups = null;
+        var findSimilarError = null;
+
+        // Library is hashed in background, so findSimilar is called until the index is complete
+        var findSimilarWhenIndexed = function (photoIdOrLibraryItem) {
+          return new Promise(function (resolve, reject) {
+            var attempt = function () {
+              cordova.plugins.photoLibrary.findSimilar(photoIdOrLibraryItem, function (result, progress) {
+                if (progress.isComplete) {
+                  resolve(result);
+                } else {
+                  setTimeout(attempt, 500);
+                }
+              }, reject);
+            };
+            attempt();
+          });
+        };
+
+        beforeAll(function (done) {
+          landscapes = library.filter(function (libraryItem) { return libraryItem.fileName.indexOf('Landscape_') === 0; });
+          findSimilarWhenIndexed(landscapes[0])
+          .then(function (result) {
+            similar = result;
+            return findSimilarWhenIndexed('all');
+          })
+          .then(function (result) {
+            groups = result;
+            done();
+          })
+          .catch(function (err) {
+            findSimilarError = err;
+            done.fail(err);
+          });
+        }, 60000); // Hashes whole library on first call
+
+        it('should not fail', function () {
+          expect(findSimilarError).toBeNull('failed with error: ' + findSimilarError);
+        });
+
+        it('should find same image in other orientations', function () {
+          var similarIds = similar.map(function (item) { return item.id; });
+          landscapes.slice(1).forEach(function (libraryItem) {
+            expect(similarIds).toContain(libraryItem.id);
+          });
+        });
+
+        it('should not return the photo itself', function () {
+          expect(similar.map(function (item) { return item.id; })).not.toContain(landscapes[0].id);
+        });
+
+        it('should group all the landscapes together', function () {
+          var group = groups.filter(function (group) { return group.indexOf(landscapes[0].id) >= 0; })[0];
+          expect(group).toBeDefined();
+          landscapes.forEach(function (libraryItem) {
+            expect(group).toContain(libraryItem.id);
+          });
+        });
+
+      });
+
+      describeAndroid('cordova.plugins.photoLibrary.getTimeline', function () {
+
+        var timelines = {};
+        var timelineError = null;
+
+        beforeAll(function (done) {
+          Promise.all(['day', 'month', 'year'].map(function (granularity) {
+            return new Promise(function (resolve, reject) {
+              cordova.plugins.photoLibrary.getTimeline(granularity, resolve, reject);
+            })
+            .then(function (timeline) {
+              timelines[granularity] = timeline;
+            });
+          }))
+          .then(function () {
+            done();
+          })
+          .catch(function (err) {
+            timelineError = err;
+            done.fail(err);
+          });
+        });
+
+        it('should not fail', function () {
+          expect(timelineError).toBeNull('failed with error: ' + timelineError);
+        });
+
+        it('should count every photo of the library', function () {
+          ['day', 'month', 'year'].forEach(function (granularity) {
+            var timeline = timelines[granularity];
+            var count = timeline.counts.reduce(function (sum, count) { return sum + count; }, 0);
+            expect(timeline.buckets.length).toEqual(timeline.counts.length);
+            expect(count).toEqual(library.length);
+          });
+        });
+
+        it('should count videos as getLibrary does when includeVideos is set', function (done) {
+          new Promise(function (resolve, reject) {
+            cordova.plugins.photoLibrary.getLibrary(function (result) { resolve(result.library); }, reject, { includeVideos: true });
+          })
+          .then(function (mixedLibrary) {
+            cordova.plugins.photoLibrary.getTimeline('year',
+              function (timeline) {
+                var count = timeline.counts.reduce(function (sum, count) { return sum + count; }, 0);
+                expect(count).toEqual(mixedLibrary.length);
+                done();
+              },
+              done.fail,
+              { includeVideos: true });
+          })
+          .catch(done.fail);
+        });
+
+        it('should return most recent bucket first', function () {
+          var buckets = timelines.day.buckets;
+          expect(buckets.slice().sort().reverse()).toEqual(buckets);
+          expect(timelines.month.buckets[0]).toEqual(buckets[0].substring(0, 7));
+          expect(timelines.year.buckets[0]).toEqual(buckets[0].substring(0, 4));
+        });
+
+        it('should fail on unsupported granularity', function (done) {
+          cordova.plugins.photoLibrary.getTimeline('week',
+            function () {
+              done.fail('succeeded with unsupported granularity');
+            },
+            function (err) {
+              expect(err).toContain('Unsupported granularity');
+              done();
+            });
+        });
+
+      });
+
+      describeAndroid('cordova.plugins.photoLibrary.queryRegion', function () {
+
+        var world = { south: -90, west: -180, north: 90, east: 180 };
+        var items = null;
+        var clusters = null;
+        var regionError = null;
+
+        beforeAll(function (done) {
+          new Promise(function (resolve, reject) {
+            cordova.plugins.photoLibrary.queryRegion(world, resolve, reject);
+          })
+          .then(function (result) {
+            items = result;
+            return new Promise(function (resolve, reject) {
+              cordova.plugins.photoLibrary.clusterRegion(world, 0, resolve, reject);
+            });
+          })
+          .then(function (result) {
+            clusters = result;
+            done();
+          })
+          .catch(function (err) {
+            regionError = err;
+            done.fail(err);
+          });
+        });
+
+        it('should not fail', function () {
+          expect(regionError).toBeNull('failed with error: ' + regionError);
+        });
+
+        it('should return photos of the library with their location', function () {
+          var libraryIds = library.map(function (libraryItem) { return libraryItem.id; });
+          items.forEach(function (item) {
+            expect(libraryIds).toContain(item.id);
+            expect(item.latitude).toEqual(jasmine.any(Number));
+            expect(item.longitude).toEqual(jasmine.any(Number));
+          });
+        });
+
+        it('should cluster all the photos of the region', function () {
+          var count = clusters.reduce(function (sum, cluster) { return sum + cluster.count; }, 0);
+          expect(clusters.length).toBeLessThan(2); // one tile at zoom 0
+          expect(count).toEqual(items.length);
+        });
+
+        it('should return only the most recent photos within limit', function (done) {
+          cordova.plugins.photoLibrary.queryRegion(world,
+            function (limited) {
+              expect(limited.length).toEqual(Math.min(1, items.length));
+              expect(limited.map(function (item) { return item.id; })).toEqual(items.slice(0, 1).map(function (item) { return item.id; }));
+              done();
+            },
+            done.fail,
+            { limit: 1 });
+        });
+
+      });
+
+      describeAndroid('cordova.plugins.photoLibrary.getMetrics', function () {
+
+        var metrics = null;
+        var metricsError = null;
+
+        var getThumbnail = function () {
+          return new Promise(function (resolve, reject) {
+            // Size that no other test uses, so first call is not served by cache
+            cordova.plugins.photoLibrary.getThumbnail(library[0].id, resolve, reject, { thumbnailWidth: 123, thumbnailHeight: 77 });
+          });
+        };
+
+        beforeAll(function (done) {
+          new Promise(function (resolve, reject) {
+            cordova.plugins.photoLibrary.resetMetrics(resolve, reject);
+          })
+          .then(getThumbnail)
+          .then(getThumbnail)
+          .then(function () {
+            return new Promise(function (resolve, reject) {
+              cordova.plugins.photoLibrary.getMetrics(resolve, reject);
+            });
+          })
+          .then(function (result) {
+            metrics = result;
+            done();
+          })
+          .catch(function (err) {
+            metricsError = err;
+            done.fail(err);
+          });
+        });
+
+        it('should not fail', function () {
+          expect(metricsError).toBeNull('failed with error: ' + metricsError);
+        });
+
+        it('should count actions since reset', function () {
+          expect(metrics.actions.getThumbnail.count).toEqual(2);
+          expect(metrics.actions.getThumbnail.maxMs).not.toBeLessThan(metrics.actions.getThumbnail.p50Ms);
+        });
+
+        it('should measure decode and encode', function () {
+          expect(metrics.stages.decode.count).toEqual(1);
+          expect(metrics.stages.encode.count).toEqual(1);
+        });
+
+        it('should count thumbnail cache hits', function () {
+          expect(metrics.caches.thumbnail.misses).toEqual(1);
+          expect(metrics.caches.thumbnail.hits).toEqual(1);
+        });
+
+        it('should report decode memory budget', function () {
+          expect(metrics.memory.decodeBudgetBytes).toBeGreaterThan(0);
+          expect(metrics.memory.decodeBytesInUse).toEqual(0);
+        });
+
+        it('should count bytes sent to webview', function () {
+          expect(metrics.bridgeBytes.getThumbnail).toBeGreaterThan(0);
+          expect(metrics.bridgeBytes.total).not.toBeLessThan(metrics.bridgeBytes.getThumbnail);
+        });
+
+      });
+
       describe('cordova.plugins.photoLibrary.getPhoto', function () {
 
         var photoBlob = null;
@@ -355,6 +978,70 @@ exports.defineAutoTests = function () {
 
       });
 
+      describeAndroid('concurrent requests', function () {
+
+        var concurrentLibraries = [];
+        var thumbnailsReceived = 0;
+        var concurrentErrors = [];
+
+        var librariesCount = 4;
+        var thumbnailsCount = 32;
+
+        beforeAll(function (done) {
+          var pending = librariesCount + thumbnailsCount;
+          var complete = function () {
+            pending -= 1;
+            if (pending === 0) {
+              done();
+            }
+          };
+          var fail = function (err) {
+            concurrentErrors.push(err);
+            complete();
+          };
+
+          var i;
+          for (i = 0; i < librariesCount; i++) {
+            (function (libraryIndex) {
+              concurrentLibraries[libraryIndex] = [];
+              cordova.plugins.photoLibrary.getLibrary(function (result) {
+                concurrentLibraries[libraryIndex] = concurrentLibraries[libraryIndex].concat(result.library);
+                if (result.isLastChunk) {
+                  complete();
+                }
+              }, fail, { itemsInChunk: 2, useOriginalFileNames: true });
+            })(i);
+          }
+
+          for (i = 0; i < thumbnailsCount; i++) {
+            cordova.plugins.photoLibrary.getThumbnail(library[i % library.length].id, function () {
+              thumbnailsReceived += 1;
+              complete();
+            }, fail, {
+              thumbnailWidth: 64 + i,
+              thumbnailHeight: 64 + i,
+            });
+          }
+        }, 60000);
+
+        it('should not fail', function () {
+          expect(concurrentErrors).toEqual([]);
+        });
+
+        it('should return all thumbnails', function () {
+          expect(thumbnailsReceived).toEqual(thumbnailsCount);
+        });
+
+        it('should return same library to each concurrent getLibrary', function () {
+          var expected = library.map(function (item) { return item.id + '|' + item.creationDate.getTime(); });
+          concurrentLibraries.forEach(function (concurrentLibrary) {
+            var actual = concurrentLibrary.map(function (item) { return item.id + '|' + item.creationDate.getTime(); });
+            expect(actual).toEqual(expected);
+          });
+        });
+
+      });
+
       var chunkOptionsArray = [{itemsInChunk: 1, chunkTimeSec: 0}, {itemsInChunk: 0, chunkTimeSec: 0.000000001}];
 
       chunkOptionsArray.forEach(function (chunkOptions) {
@@ -410,6 +1097,57 @@ exports.defineAutoTests = function () {
 
     });
 
+    describeAndroid('cordova.plugins.photoLibrary.cancelLibrary', function () {
+
+      var sessionId = null;
+      var cancelledChunks = [];
+      var cancelLibraryResult = null;
+      var cancelledError = null;
+
+      beforeAll(function (done) {
+        sessionId = cordova.plugins.photoLibrary.getLibrary(function (result) {
+          cancelledChunks.push(result);
+          if (result.isLastChunk) {
+            done();
+          }
+        },
+        function (err) {
+          cancelledError = err;
+          done.fail(err);
+        },
+          {
+            itemsInChunk: 1,
+          });
+
+        cordova.plugins.photoLibrary.cancelLibrary(sessionId, function (wasRunning) {
+          cancelLibraryResult = wasRunning;
+        },
+        function (err) {
+          cancelledError = err;
+        });
+      }, 20000); // In browser platform, gives a time to select photos.
+
+      it('should not fail', function () {
+        expect(cancelledError).toBeNull('cancelLibrary failed with error: ' + cancelledError);
+      });
+
+      it('getLibrary should return session id', function () {
+        expect(sessionId).toEqual(jasmine.any(String));
+        expect(sessionId.length).not.toEqual(0);
+      });
+
+      it('should find running session', function () {
+        expect(cancelLibraryResult).toBe(true);
+      });
+
+      it('should deliver final result marked as cancelled', function () {
+        var lastChunk = cancelledChunks[cancelledChunks.length - 1];
+        expect(lastChunk.isLastChunk).toBeTruthy();
+        expect(lastChunk.isCancelled).toBeTruthy();
+      });
+
+    });
+
     describe('cordova.plugins.photoLibrary.saveImage', function () {
 
       it('should be defined', function () {
@@ -553,6 +1291,95 @@ exports.defineAutoTests = function () {
 
     });
 
+    describeAndroid('cordova.plugins.photoLibrary.saveImages', function () {
+
+      var saveImagesLibraryItems = null;
+      var saveImagesError = null;
+
+      var imagesCount = 5;
+
+      beforeAll(function(done) {
+        var dataURLs = [];
+        var i;
+        for (i = 0; i < imagesCount; i++) {
+          var canvas = document.createElement('canvas');
+          canvas.width = 150;
+          canvas.height = 150;
+          var ctx = canvas.getContext('2d');
+          ctx.fillRect(10 * i, 10 * i, 100, 100);
+          dataURLs.push(canvas.toDataURL('image/jpeg'));
+        }
+
+        cordova.plugins.photoLibrary.saveImages(dataURLs, 'PhotoLibraryTests',
+          function(libraryItems) {
+            saveImagesLibraryItems = libraryItems;
+            done();
+          },
+          function(err) {
+            saveImagesError = err;
+            done.fail(err);
+          });
+      });
+
+      it('should not fail', function() {
+        expect(saveImagesError).toBeNull('failed with error: ' + saveImagesError);
+      });
+
+      it('should return library item for each image', function() {
+        expect(saveImagesLibraryItems.length).toEqual(imagesCount);
+        saveImagesLibraryItems.forEach(function (libraryItem) {
+          expect(libraryItem).not.toBeNull();
+          expect(libraryItem.id).toBeDefined();
+          expect(libraryItem.thumbnailURL).toBeDefined();
+        });
+      });
+
+      it('should save each image to its own file', function() {
+        var ids = saveImagesLibraryItems.map(function (libraryItem) { return libraryItem.id; });
+        var uniqueIds = ids.filter(function (id, index) { return ids.indexOf(id) === index; });
+        expect(uniqueIds.length).toEqual(imagesCount);
+      });
+
+      describe('with bad url in the batch', function () {
+
+        var libraryItems = null;
+        var error = null;
+
+        beforeAll(function(done) {
+          var canvas = document.createElement('canvas');
+          canvas.width = 150;
+          canvas.height = 150;
+          canvas.getContext('2d').fillRect(10, 10, 100, 100);
+          var dataURL = canvas.toDataURL('image/jpeg');
+
+          cordova.plugins.photoLibrary.saveImages([dataURL, 'data:not-a-data-url', dataURL], 'PhotoLibraryTests',
+            function(result) {
+              libraryItems = result;
+              done();
+            },
+            function(err) {
+              error = err;
+              done.fail(err);
+            });
+        });
+
+        it('should not fail', function() {
+          expect(error).toBeNull('failed with error: ' + error);
+        });
+
+        it('should return null for bad url only', function() {
+          expect(libraryItems.length).toEqual(3);
+          expect(libraryItems[0]).not.toBeNull();
+          expect(libraryItems[0].id).toBeDefined();
+          expect(libraryItems[1]).toBeNull();
+          expect(libraryItems[2]).not.toBeNull();
+          expect(libraryItems[2].id).toBeDefined();
+        });
+
+      });
+
+    });
+
     describe('cordova.plugins.photoLibrary.saveVideo', function () {
 
       it('should be defined', function () {
@@ -600,6 +1427,10 @@ exports.defineManualTests = function (contentEl, createActionButton) {
     '<div id="measure_get_library_speed"></div>' +
     'Expected result: Time per image should be adequate' +
 
+    '<h3>Press the button to measure saving of large dataURL</h3>' +
+    '<div id="measure_save_large_data_url"></div>' +
+    'Expected result: Saving should succeed, and heap of the app (see Android Studio profiler) should not grow by multiple sizes of the image' +
+
     '<h3>Press the button to display albums</h3>' +
     '<div id="display_albums"></div>' +
     'Expected result: Should return all the albums'
@@ -692,6 +1523,35 @@ exports.defineManualTests = function (contentEl, createActionButton) {
     );
   }, 'measure_get_library_speed');
 
+  createActionButton('measure saving', function () {
+    clearLog();
+    var sizeMB = 16;
+    logMessage('generating ' + sizeMB + 'MB dataURL...');
+    // Noise does not compress, so payload stays large. The content does not have to be a valid image to measure decoding.
+    var bytes = new Uint8Array(sizeMB * 1024 * 1024);
+    var i;
+    for (i = 0; i < bytes.length; i += 65536) {
+      window.crypto.getRandomValues(bytes.subarray(i, i + 65536));
+    }
+    var binary = '';
+    for (i = 0; i < bytes.length; i += 8192) {
+      binary += String.fromCharCode.apply(null, bytes.subarray(i, i + 8192));
+    }
+    var dataURL = 'data:image/jpeg;base64,' + btoa(binary);
+    binary = null;
+    logMessage('saving, please wait...');
+    var start = performance.now();
+    cordova.plugins.photoLibrary.saveImage(dataURL, 'PhotoLibraryTests',
+      function () {
+        var elapsedMs = performance.now() - start;
+        logMessage('saving ' + sizeMB + 'MB took ' + Math.round(elapsedMs) + ' ms.');
+      },
+      function (err) {
+        logMessage('Error occured in saveImage: ' + err);
+      }
+    );
+  }, 'measure_save_large_data_url');
+
   createActionButton('display albums', function () {
     clearLog();
     cordova.plugins.photoLibrary.getAlbums(
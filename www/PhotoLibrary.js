@@ -7,11 +7,20 @@ var defaultThumbnailHeight = 384; // optimal for android
 
 var defaultQuality = 0.5;
 
+var defaultOutputFormat = 'jpeg'; // 'jpeg', 'webp' or 'png'
+
+var defaultSimilarityThreshold = 10; // bits that may differ of 64 bit perceptual hash
+
+var defaultRegionLimit = 1000; // photos, so region of far zoom does not send whole geotagged library over the bridge
+
 var isBrowser = cordova.platformId == 'browser';
 
 var photoLibrary = {};
 
+var librarySessionsStarted = 0;
+
 // Will start caching for specified size
+// Returns sessionId, that can be passed to cancelLibrary
 photoLibrary.getLibrary = function (success, error, options) {
 
   if (!options) {
@@ -22,6 +31,8 @@ photoLibrary.getLibrary = function (success, error, options) {
     thumbnailWidth: options.thumbnailWidth || defaultThumbnailWidth,
     thumbnailHeight: options.thumbnailHeight || defaultThumbnailHeight,
     quality: options.quality || defaultQuality,
+    outputFormat: options.outputFormat || defaultOutputFormat,
+    targetByteSize: options.targetByteSize || 0,
     itemsInChunk: options.itemsInChunk || 0,
     chunkTimeSec: options.chunkTimeSec || 0,
     useOriginalFileNames: options.useOriginalFileNames || false,
@@ -29,7 +40,9 @@ photoLibrary.getLibrary = function (success, error, options) {
     includeAlbumData: options.includeAlbumData || false,
     includeCloudData: options.includeCloudData !== undefined ? options.includeCloudData : true,
     includeVideos: options.includeVideos || false,
-    maxItems: options.maxItems || 0
+    maxItems: options.maxItems || 0,
+    compactIds: options.compactIds || false,
+    sessionId: 'getLibrary-' + new Date().getTime() + '-' + (librarySessionsStarted++)
   };
 
   // queue that keeps order of async processing
@@ -37,9 +50,10 @@ photoLibrary.getLibrary = function (success, error, options) {
 
     var library = chunk.library;
     var isLastChunk = chunk.isLastChunk;
+    var isCancelled = chunk.isCancelled || false;
 
     processLibrary(library, function(library) {
-      var result = { library: library, isLastChunk: isLastChunk };
+      var result = { library: library, isLastChunk: isLastChunk, isCancelled: isCancelled };
       success(result);
       done();
     }, options);
@@ -71,6 +85,51 @@ photoLibrary.getLibrary = function (success, error, options) {
     'getLibrary', [options]
   );
 
+  return options.sessionId;
+
+};
+
+// Stops enumeration started by getLibrary. Last chunk will arrive to getLibrary's success callback with isCancelled set.
+// success receives false if the session already completed.
+photoLibrary.cancelLibrary = function (sessionId, success, error) {
+
+  cordova.exec(
+    success,
+    error,
+    'PhotoLibrary',
+    'cancelLibrary', [sessionId]
+  );
+
+};
+
+// Gets up to date library items for given photo ids, without enumerating whole library.
+// success receives library items in same order as photoIds, null for photos that are no longer in the library.
+photoLibrary.getLibraryItems = function (photoIdsOrLibraryItems, success, error, options) {
+
+  var photoIds = photoIdsOrLibraryItems.map(function (photoIdOrLibraryItem) {
+    return typeof photoIdOrLibraryItem.id !== 'undefined' ? photoIdOrLibraryItem.id : photoIdOrLibraryItem;
+  });
+
+  if (!options) {
+    options = {};
+  }
+
+  var thumbnailOptions = getThumbnailOptionsWithDefaults(options);
+
+  cordova.exec(
+    function (libraryItems) {
+      var library = libraryItems.filter(function (libraryItem) { return libraryItem; });
+
+      processLibrary(library, function() {
+        success(libraryItems);
+      }, thumbnailOptions);
+
+    },
+    error,
+    'PhotoLibrary',
+    'getLibraryItems', [photoIds, { includeAlbumData: options.includeAlbumData || false, compactIds: options.compactIds || false }]
+  );
+
 };
 
 photoLibrary.getAlbums = function (success, error) {
@@ -115,7 +174,9 @@ photoLibrary.getThumbnailURL = function (photoIdOrLibraryItem, success, error, o
   var urlParams = 'photoId=' + fixedEncodeURIComponent(photoId) +
     '&width=' + fixedEncodeURIComponent(options.thumbnailWidth) +
     '&height=' + fixedEncodeURIComponent(options.thumbnailHeight) +
-    '&quality=' + fixedEncodeURIComponent(options.quality);
+    '&quality=' + fixedEncodeURIComponent(options.quality) +
+    '&format=' + fixedEncodeURIComponent(options.outputFormat) +
+    (options.targetByteSize ? '&targetByteSize=' + fixedEncodeURIComponent(options.targetByteSize) : '');
   var thumbnailURL = 'cdvphotolibrary://thumbnail?' + urlParams;
 
   if (success) {
@@ -179,6 +240,11 @@ photoLibrary.getThumbnail = function (photoIdOrLibraryItem, success, error, opti
 
 };
 
+var photoSessionsStarted = 0;
+var cancelledPhotoSessions = {}; // results already on their way from native code are dropped for these
+
+// With progressive option, success is called twice: first with thumbnail as preview, and isPreview set, then with the photo.
+// Returns sessionId of progressive getPhoto, that can be passed to cancelPhoto.
 photoLibrary.getPhoto = function (photoIdOrLibraryItem, success, error, options) {
 
   var photoId = typeof photoIdOrLibraryItem.id !== 'undefined' ? photoIdOrLibraryItem.id : photoIdOrLibraryItem;
@@ -187,6 +253,80 @@ photoLibrary.getPhoto = function (photoIdOrLibraryItem, success, error, options)
     options = {};
   }
 
+  if (options.progressive) {
+    var thumbnailOptions = getThumbnailOptionsWithDefaults(options);
+    options = {
+      progressive: true,
+      thumbnailWidth: thumbnailOptions.thumbnailWidth,
+      thumbnailHeight: thumbnailOptions.thumbnailHeight,
+      quality: thumbnailOptions.quality,
+      outputFormat: thumbnailOptions.outputFormat,
+      targetByteSize: thumbnailOptions.targetByteSize,
+      sessionId: 'getPhoto-' + new Date().getTime() + '-' + (photoSessionsStarted++)
+    };
+  }
+
+  var sessionId = options.sessionId;
+
+  cordova.exec(
+    function (data, mimeType) {
+      var isPreview = !!(data && data.isPreview);
+      if (sessionId && cancelledPhotoSessions[sessionId]) {
+        if (!isPreview) {
+          delete cancelledPhotoSessions[sessionId];
+        }
+        return;
+      }
+      var blob = dataAndMimeTypeToBlob(data, mimeType);
+      success(blob, isPreview);
+    },
+    function (err) {
+      if (sessionId && cancelledPhotoSessions[sessionId]) {
+        delete cancelledPhotoSessions[sessionId];
+        return;
+      }
+      error(err);
+    },
+    'PhotoLibrary',
+    'getPhoto', [photoId, options]
+  );
+
+  return sessionId;
+
+};
+
+// Stops progressive getPhoto, e.g. when viewer is dismissed before the photo arrived. Its callbacks will not be called after that.
+// success receives false if the session already completed.
+photoLibrary.cancelPhoto = function (sessionId, success, error) {
+
+  cordova.exec(
+    function (found) {
+      if (!found) {
+        delete cancelledPhotoSessions[sessionId]; // its result already arrived
+      }
+      if (success) {
+        success(found);
+      }
+    },
+    error,
+    'PhotoLibrary',
+    'cancelPhoto', [sessionId]
+  );
+
+  cancelledPhotoSessions[sessionId] = true;
+
+};
+
+// rect is { x, y, width, height } in pixels of the photo as shown, scale (0..1] is size of result relative to rect.
+// Only the region is decoded, so zoom viewers can show full resolution of large photos.
+photoLibrary.getPhotoRegion = function (photoIdOrLibraryItem, rect, scale, success, error, options) {
+
+  var photoId = typeof photoIdOrLibraryItem.id !== 'undefined' ? photoIdOrLibraryItem.id : photoIdOrLibraryItem;
+
+  if (!options) {
+    options = {};
+  }
+
   cordova.exec(
     function (data, mimeType) {
       var blob = dataAndMimeTypeToBlob(data, mimeType);
@@ -194,11 +334,33 @@ photoLibrary.getPhoto = function (photoIdOrLibraryItem, success, error, options)
     },
     error,
     'PhotoLibrary',
-    'getPhoto', [photoId, options]
+    'getPhotoRegion', [photoId, rect, scale, options]
   );
 
 };
 
+// Generates url of region of the photo, for tiles of zoom viewers. Works more efficiently than getPhotoRegion, as there is no base64 encode/decode.
+photoLibrary.getTileURL = function (photoIdOrLibraryItem, rect, scale, options) {
+
+  var photoId = typeof photoIdOrLibraryItem.id !== 'undefined' ? photoIdOrLibraryItem.id : photoIdOrLibraryItem;
+
+  if (!options) {
+    options = {};
+  }
+
+  var urlParams = 'photoId=' + fixedEncodeURIComponent(photoId) +
+    '&x=' + Math.round(rect.x) +
+    '&y=' + Math.round(rect.y) +
+    '&width=' + Math.round(rect.width) +
+    '&height=' + Math.round(rect.height) +
+    '&scale=' + fixedEncodeURIComponent(scale) +
+    (options.quality ? '&quality=' + fixedEncodeURIComponent(options.quality) : '') +
+    (options.outputFormat ? '&format=' + fixedEncodeURIComponent(options.outputFormat) : '');
+
+  return 'cdvphotolibrary://tile?' + urlParams;
+
+};
+
 photoLibrary.getLibraryItem = function (libraryItem, success, error, options) {
 
   if (!options) {
@@ -229,6 +391,144 @@ photoLibrary.stopCaching = function (success, error) {
 
 };
 
+// Copies originals into targetDir natively, e.g. into cordova.file.dataDirectory for upload.
+// success receives [{ id, index, url, size }] in order of photoIds, failed photos have error instead of url.
+// options.onProgress(file, completed, total) is called as each file is done.
+photoLibrary.exportPhotos = function (photoIdsOrLibraryItems, targetDir, success, error, options) {
+
+  var photoIds = photoIdsOrLibraryItems.map(function (photoIdOrLibraryItem) {
+    return typeof photoIdOrLibraryItem.id !== 'undefined' ? photoIdOrLibraryItem.id : photoIdOrLibraryItem;
+  });
+
+  if (!options) {
+    options = {};
+  }
+
+  cordova.exec(
+    function (result) {
+      if (result.files) {
+        success(result.files);
+      } else if (options.onProgress) {
+        options.onProgress(result.file, result.completed, result.total);
+      }
+    },
+    error,
+    'PhotoLibrary',
+    'exportPhotos', [photoIds, targetDir, { applyOrientation: options.applyOrientation || false }]
+  );
+
+};
+
+// Finds photos that look the same or almost the same, like duplicates, resized copies or bursts. Android only for now.
+// photoIdOrLibraryItem is 'all' to find all groups of similar photos, then success receives arrays of photo ids.
+// Otherwise success receives [{ id, distance }] of photos similar to given one, closest first. It is empty for videos and images that can not be decoded.
+// Photos are hashed in background, starting on first call, and only new and changed photos are hashed later.
+// success receives progress { isComplete, indexed, total } as second argument. Until isComplete, photos that are not hashed yet
+// are missing from the result, so call findSimilar again later to get all of them.
+photoLibrary.findSimilar = function (photoIdOrLibraryItem, success, error, options) {
+
+  var photoId = typeof photoIdOrLibraryItem.id !== 'undefined' ? photoIdOrLibraryItem.id : photoIdOrLibraryItem;
+
+  if (!options) {
+    options = {};
+  }
+
+  cordova.exec(
+    function (result) {
+      success(result.similar, { isComplete: result.isComplete, indexed: result.indexed, total: result.total });
+    },
+    error,
+    'PhotoLibrary',
+    'findSimilar', [photoId, { threshold: options.threshold !== undefined ? options.threshold : defaultSimilarityThreshold, compactIds: options.compactIds || false }]
+  );
+
+};
+
+// Counts of photos per day, month or year, most recent first, for timelines that should not load the whole library. Android only for now.
+// granularity is 'day', 'month' or 'year'. filters are optional { albumId, from, to, includeImages, includeVideos }, from and to are Dates.
+// includeImages and includeVideos have same defaults as in getLibrary, so counts match the items it returns with same options.
+photoLibrary.getTimeline = function (granularity, success, error, filters) {
+
+  var nativeFilters = {};
+  if (filters) {
+    if (filters.albumId) {
+      nativeFilters.albumId = typeof filters.albumId.id !== 'undefined' ? filters.albumId.id : filters.albumId;
+    }
+    if (filters.from) {
+      nativeFilters.from = new Date(filters.from).getTime();
+    }
+    if (filters.to) {
+      nativeFilters.to = new Date(filters.to).getTime();
+    }
+    nativeFilters.includeImages = filters.includeImages !== undefined ? filters.includeImages : true;
+    nativeFilters.includeVideos = filters.includeVideos || false;
+  }
+
+  cordova.exec(
+    success,
+    error,
+    'PhotoLibrary',
+    'getTimeline', [granularity, nativeFilters]
+  );
+
+};
+
+// bbox is { south, west, north, east } in degrees. success receives the most recent photos of the region,
+// at most options.limit of them, 0 for no limit. Use clusterRegion for regions that have more.
+photoLibrary.queryRegion = function (bbox, success, error, options) {
+
+  if (!options) {
+    options = {};
+  }
+
+  cordova.exec(
+    success,
+    error,
+    'PhotoLibrary',
+    'queryRegion', [bbox, { limit: options.limit !== undefined ? options.limit : defaultRegionLimit, compactIds: options.compactIds || false }]
+  );
+
+};
+
+photoLibrary.clusterRegion = function (bbox, zoom, success, error, options) {
+
+  if (!options) {
+    options = {};
+  }
+
+  cordova.exec(
+    success,
+    error,
+    'PhotoLibrary',
+    'clusterRegion', [bbox, Math.round(zoom), { compactIds: options.compactIds || false }]
+  );
+
+};
+
+// Returns performance metrics collected since plugin start or last resetMetrics: latencies of actions and stages,
+// bytes sent to webview, cache hit rates and queue depths. Android only for now.
+photoLibrary.getMetrics = function (success, error) {
+
+  cordova.exec(
+    success,
+    error,
+    'PhotoLibrary',
+    'getMetrics', []
+  );
+
+};
+
+photoLibrary.resetMetrics = function (success, error) {
+
+  cordova.exec(
+    success,
+    error,
+    'PhotoLibrary',
+    'resetMetrics', []
+  );
+
+};
+
 // Call when getting errors that begin with 'Permission Denial'
 photoLibrary.requestAuthorization = function (success, error, options) {
 
@@ -268,15 +568,51 @@ photoLibrary.saveImage = function (url, album, success, error, options) {
 
 };
 
+// urls are file urls or dataURLs. Faster than calling saveImage for each url, as media library is updated once for all images.
+// success receives library items in same order as urls, null for urls that could not be saved or found after saving.
+// A bad url does not fail the others.
+photoLibrary.saveImages = function (urls, album, success, error, options) {
+
+  options = getThumbnailOptionsWithDefaults(options);
+
+  if (album.title) {
+    album = album.title;
+  }
+
+  cordova.exec(
+    function (libraryItems) {
+      var library = libraryItems.filter(function (libraryItem) { return libraryItem; });
+
+      processLibrary(library, function() {
+        success(libraryItems);
+      }, options);
+
+    },
+    error,
+    'PhotoLibrary',
+    'saveImages', [urls, album]
+  );
+
+};
+
 // url is file url or dataURL
-photoLibrary.saveVideo = function (url, album, success, error) {
+photoLibrary.saveVideo = function (url, album, success, error, options) {
+
+  options = getThumbnailOptionsWithDefaults(options);
 
   if (album.title) {
     album = album.title;
   }
 
   cordova.exec(
-    success,
+    function (libraryItem) {
+      var library = libraryItem ? [libraryItem] : [];
+
+      processLibrary(library, function(library) {
+        success(library[0] || null);
+      }, options);
+
+    },
     error,
     'PhotoLibrary',
     'saveVideo', [url, album]
@@ -296,6 +632,8 @@ var getThumbnailOptionsWithDefaults = function (options) {
     thumbnailWidth: options.thumbnailWidth || defaultThumbnailWidth,
     thumbnailHeight: options.thumbnailHeight || defaultThumbnailHeight,
     quality: options.quality || defaultQuality,
+    outputFormat: options.outputFormat || defaultOutputFormat,
+    targetByteSize: options.targetByteSize || 0,
   };
 
   return options;
@@ -339,6 +677,11 @@ var addUrlsToLibrary = function (library, callback, options) {
 
   var urlsLeft = library.length;
 
+  if (urlsLeft === 0) { // e.g. last chunk of cancelled getLibrary, or saved item that was not found
+    callback(library);
+    return;
+  }
+
   var handlePhotoURL = function (libraryItem, photoURL) {
     libraryItem.photoURL = photoURL;
     urlsLeft -= 1;